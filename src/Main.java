@@ -1,4 +1,7 @@
 import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
@@ -9,17 +12,23 @@ import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.random.RandomGenerator;
 import schemes.SchemeUniform;
 import schemes.SchemeZVAd;
 import schemes.SchemeZVAv;
 import schemes.SchemeZVAt;
+import algorithms.BatchReachabilityTracer;
+import algorithms.MultiReachabilityTracer;
 import algorithms.Scheme;
+import algorithms.SearchAlgorithm;
 import algorithms.SimulationResult;
 import algorithms.Simulator;
 import algorithms.TraceGenerator;
+import algorithms.WorkerProcesses;
 
 import ec.util.MersenneTwisterFast;
 import nl.ennoruijters.interval.XoroShiro128RandomSource;
+import nl.ennoruijters.interval.Xoshiro256PlusPlusRandomSource;
 import nl.utwente.ewi.fmt.EXPRES.Automaton;
 import nl.utwente.ewi.fmt.EXPRES.MarkedAutomaton;
 import nl.utwente.ewi.fmt.EXPRES.MarkovReducedLTS;
@@ -36,6 +45,9 @@ import nl.utwente.ewi.fmt.EXPRES.expression.ConstantExpression;
 import nl.utwente.ewi.fmt.EXPRES.expression.VariableExpression;
 
 import models.ExpModel;
+import models.ExplicitModel;
+import models.NeighbourCache;
+import models.StateSpace;
 
 class Main {
 	static Random rng;
@@ -49,6 +61,30 @@ class Main {
 	static boolean zvat = false;
 	static boolean jsonOutput = false;
 	static boolean unsafeComposition = false;
+	static boolean sharedTraces = false;
+	/* Properties of an unreliability curve, which always share
+	 * traces. */
+	static TreeSet<String> curveProperties = new TreeSet<>();
+	/* Number of traces simulated in lockstep, or 0 to simulate
+	 * one trace at a time. */
+	static int batchSize = 0;
+	/* Where to stream intermediate estimates, if anywhere. */
+	static PrintStream estimateStream;
+	static long estimateInterval = 1000;
+	/* Prefix of the names of checkpoint files, if any. */
+	static String checkpointBase;
+	static boolean resume = false;
+	/* Fingerprint of the model and the options affecting the
+	 * results, so checkpoints are only resumed by the same run. */
+	static String fingerprint;
+	/* Report the neighbour cache statistics of each simulation. */
+	static boolean cacheStats = false;
+	static boolean explicitModel = false;
+	/* Worker processes performing the simulations, if any. */
+	static WorkerProcesses workerProcs;
+	/* Connection to the coordinator, if this is a worker process. */
+	static BufferedReader coordinatorIn;
+	static PrintStream coordinatorOut;
 	static LTS model;
 	static TreeSet<Property> properties = new TreeSet<>();
 
@@ -110,6 +146,7 @@ class Main {
 	}
 
 	private static SimulationResult runSim(Property prop, Scheme s)
+			throws IOException
 	{
 		double force;
 		if (forceBound != null) {
@@ -120,27 +157,309 @@ class Main {
 			else
 				force = 0;
 		}
-		Simulator simulator = new Simulator(rng, prop, s, force);
+		Simulator simulator;
+		if (canBatch(prop, s, force)) {
+			TraceGenerator gen;
+			gen = new BatchReachabilityTracer(rng, s, prop, force,
+			                                  batchSize);
+			simulator = new Simulator(gen);
+		} else {
+			simulator = new Simulator(rng, prop, s, force);
+		}
+		if (checkpointBase != null)
+			simulator.setCheckpoint(new File(checkpointBase + "." + prop.name), resume, fingerprint);
+		SimulationResult[] res = runSimulator(simulator, false);
+		reportCache(prop.name, s, simulator);
+		/* Worker processes report to the coordinator instead. */
+		if (res.length == 0)
+			return null;
+		return res[0];
+	}
+
+	private static void reportCache(String name, Scheme s,
+	                                Simulator simulator)
+	{
+		if (!cacheStats)
+			return;
+		System.err.println(name + ": " + s.model.neighbourCache);
+		String paths = simulator.pathCacheStatistics();
+		if (paths != null)
+			System.err.println(name + ": " + paths);
+	}
+
+	private static SimulationResult[] runSimulator(Simulator simulator,
+	                                               boolean shared)
+			throws IOException
+	{
 		currentSimulator = simulator;
-		SimulationResult res;
-		if (!Double.isNaN(relErr)) {
+		if (estimateStream != null) {
+			simulator.reportEstimates(estimateStream,
+			                          estimateInterval,
+			                          1-confidence);
+		}
+		SimulationResult[] res;
+		if (coordinatorIn != null) {
+			simulator.serve(coordinatorIn, coordinatorOut);
+			res = new SimulationResult[0];
+		} else if (workerProcs != null) {
+			res = simulator.simWorkers(workerProcs, maxTime, maxSims, 1-confidence);
+			workerProcs.next();
+		} else if (!Double.isNaN(relErr)) {
 			if (maxSims > 0)
 				System.err.println("Warning: Simulating up to relative error, ignoring simulation bound.");
 			if (maxTime > 0)
 				System.err.println("Warning: Simulating up to relative error, ignoring time limit.");
-			res = simulator.simRelErr(relErr, 1-confidence, maxSims);
+			if (shared || checkpointBase != null) {
+				res = simulator.simSequentialRelErrAll(relErr, 1-confidence, maxSims);
+			} else {
+				res = new SimulationResult[] {
+					simulator.simRelErr(relErr, 1-confidence, maxSims)
+				};
+			}
 		} else {
-			res = simulator.sim(maxTime, maxSims, 1-confidence);
+			res = simulator.simAll(maxTime, maxSims, 1-confidence);
 		}
+		simulator.shutdown();
 		return res;
 	}
 
+	/**
+	 * Start worker processes for the simulations: the given number
+	 * of local JVMs, plus one for each of the given shell commands
+	 * (e.g., "ssh node1 java -jar DFTRES.jar"). The workers get
+	 * the same options as this process, except for output and
+	 * worker options, and the seed of each is derived from the
+	 * given one and its index.
+	 *
+	 * @param options The command-line options, without the model.
+	 * @param filename The model file.
+	 */
+	private static WorkerProcesses startWorkers(String[] options,
+	                                            String filename,
+	                                            long seed,
+	                                            int localWorkers,
+	                                            List<String> commands)
+			throws IOException
+	{
+		ArrayList<String> workerArgs = new ArrayList<>();
+		for (int i = 0; i < options.length; i++) {
+			switch (options[i]) {
+				case "--workers":
+				case "--worker-cmd":
+				case "--export-jani":
+				case "--estimates":
+				case "--estimates-interval":
+				case "--export-tralab":
+				case "-s":
+					i++;
+					continue;
+				case "--json":
+				case "--progress":
+					continue;
+			}
+			workerArgs.add(options[i]);
+		}
+		workerArgs.add("-s");
+		workerArgs.add(Long.toString(seed));
+		ArrayList<List<String>> cmds = new ArrayList<>();
+		String java = System.getProperty("java.home") + "/bin/java";
+		String cp = System.getProperty("java.class.path");
+		for (int i = 0; i < localWorkers + commands.size(); i++) {
+			ArrayList<String> cmd = new ArrayList<>();
+			if (i < localWorkers) {
+				cmd.addAll(List.of(java, "-cp", cp, "Main"));
+				cmd.addAll(workerArgs);
+				cmd.addAll(List.of("--worker", Integer.toString(i)));
+				cmd.add(filename);
+			} else {
+				StringBuilder sh;
+				sh = new StringBuilder(commands.get(i - localWorkers));
+				for (String arg : workerArgs)
+					sh.append(' ').append(shellQuote(arg));
+				sh.append(" --worker ").append(i);
+				sh.append(' ').append(shellQuote(filename));
+				cmd.addAll(List.of("/bin/sh", "-c", sh.toString()));
+			}
+			cmds.add(cmd);
+		}
+		return new WorkerProcesses(cmds);
+	}
+
+	/**
+	 * Hash of the contents of the model file, together with the
+	 * constants and all options that affect the results, in hex.
+	 */
+	private static String fingerprint(String filename, String options)
+			throws IOException
+	{
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		try (InputStream in = new DigestInputStream(
+				new FileInputStream(filename), md))
+		{
+			byte[] buf = new byte[65536];
+			while (in.read(buf) >= 0)
+				;
+		}
+		md.update(options.getBytes("UTF-8"));
+		StringBuilder ret = new StringBuilder();
+		for (byte b : md.digest())
+			ret.append(String.format("%02x", b));
+		return ret.toString();
+	}
+
+	private static String shellQuote(String arg)
+	{
+		return "'" + arg.replace("'", "'\\''") + "'";
+	}
+
+	/**
+	 * A new state space of the model, explored in advance if
+	 * requested.
+	 */
+	private static ExpModel newStateSpace() throws IOException
+	{
+		if (explicitModel)
+			return new ExplicitModel(epsilon, model, Simulator.coresToUse);
+		return new ExpModel(epsilon, model);
+	}
+
+	/**
+	 * Estimate several reachability properties from the same
+	 * traces. The properties must be simulated using standard Monte
+	 * Carlo or share their targets.
+	 */
+	private static void runSharedSimulations(List<SimulationResult> ret,
+	                                         List<Property> props)
+			throws IOException
+	{
+		ExpModel statespace = newStateSpace();
+		Property[] ps = props.toArray(new Property[0]);
+		Scheme s;
+		if (mc)
+			s = new Scheme(statespace);
+		else
+			s = instantiateZVAv(statespace, ps[0]);
+		double force = forceBound != null ? forceBound : 0;
+		TraceGenerator gen;
+		gen = new MultiReachabilityTracer(rng, s, ps, force);
+		Simulator simulator = new Simulator(gen);
+		if (checkpointBase != null)
+			simulator.setCheckpoint(new File(checkpointBase + "." + ps[0].name), resume, fingerprint);
+		SimulationResult[] res = runSimulator(simulator, true);
+		reportCache(ps[0].name, s, simulator);
+		synchronized(ret) {
+			ret.addAll(Arrays.asList(res));
+			currentSimulator = null;
+		}
+	}
+
+	/**
+	 * Parse a time bound, a comma-separated list of time bounds, or
+	 * a range "start:end:step" of time bounds.
+	 */
+	private static double[] parseTimes(String arg)
+	{
+		String[] range = arg.split(":");
+		if (range.length == 3) {
+			double start = Double.parseDouble(range[0]);
+			double end = Double.parseDouble(range[1]);
+			double step = Double.parseDouble(range[2]);
+			if (!(step > 0) || !(end >= start))
+				throw new IllegalArgumentException("Invalid time range: " + arg);
+			int n = (int)Math.floor((end - start) / step + 1e-9) + 1;
+			double[] ret = new double[n];
+			for (int i = 0; i < n; i++)
+				ret[i] = start + i * step;
+			return ret;
+		}
+		String[] parts = arg.split(",");
+		double[] ret = new double[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			ret[i] = Double.parseDouble(parts[i]);
+		return ret;
+	}
+
+	/**
+	 * Instantiate ZVA-v, storing the importance function next to
+	 * the checkpoints (if any) so it can be reused when resuming.
+	 * With worker processes, only the coordinator searches, and
+	 * sends the result to the workers.
+	 */
+	private static SchemeZVAv instantiateZVAv(ExpModel statespace,
+	                                          Property prop)
+			throws IOException
+	{
+		/* The workers reuse the search of the coordinator. */
+		if (coordinatorIn != null) {
+			byte[] data = WorkerProcesses.receiveImportance(coordinatorIn);
+			if (data == null)
+				throw new UnsupportedOperationException("Importance search failed in the coordinator.");
+			return SchemeZVAv.read(statespace, new DataInputStream(
+					new ByteArrayInputStream(data)));
+		}
+		if (workerProcs != null) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			SchemeZVAv ret;
+			try {
+				ret = SchemeZVAv.instantiate(statespace, prop,
+						new DataOutputStream(buf));
+			} catch (RuntimeException e) {
+				workerProcs.shareImportance(null);
+				throw e;
+			}
+			workerProcs.shareImportance(buf.toByteArray());
+			return ret;
+		}
+		if (checkpointBase == null)
+			return SchemeZVAv.instantiate(statespace, prop);
+		File f = new File(checkpointBase + "." + prop.name + ".importance");
+		return SchemeZVAv.instantiate(statespace, prop, f, resume,
+		                              fingerprint);
+	}
+
+	/**
+	 * Whether the batched tracer supports the property and scheme:
+	 * the transition weights may not depend on the time left, and
+	 * time-bounded properties may not encounter HPCs (which only
+	 * the search of importance sampling schemes creates).
+	 */
+	private static boolean canBatch(Property prop, Scheme s, double force)
+	{
+		if (batchSize <= 0 || prop.type != Property.Type.REACHABILITY)
+			return false;
+		if (force < 0 || TraceGenerator.acceleration != 1)
+			return false;
+		if (s.getClass() == Scheme.class)
+			return true;
+		return s instanceof SchemeZVAv
+			&& prop.timeBound == Double.POSITIVE_INFINITY;
+	}
+
+	private static boolean canShareTraces(Property prop)
+	{
+		return (sharedTraces || curveProperties.contains(prop.name))
+			&& prop.type == Property.Type.REACHABILITY
+			/* Shared traces are drawn under a single scheme,
+			 * so --mc and --zvav together (which estimate
+			 * each property under both) also run one
+			 * property at a time. */
+			&& !(zvad || zvat || unif || (mc && zvav))
+			/* Path-based forcing needs the path of each
+			 * property separately. */
+			&& (forceBound == null || forceBound >= 0);
+	}
+
 	private static void runSimulations(List<SimulationResult> ret,
 	                                   Property prop)
 			throws IOException
 	{
 		boolean multiple = false;
-		ExpModel statespace = new ExpModel(epsilon, model);
+		ExpModel statespace = newStateSpace();
 		if (!(mc || zvav || zvad || zvat || unif)) {
 			Scheme s;
 			if (prop.type == Property.Type.EXPECTED_VALUE
@@ -148,7 +467,7 @@ class Main {
 			{
 				s = new Scheme(statespace);
 			} else {
-				s = SchemeZVAv.instantiate(statespace, prop);
+				s = instantiateZVAv(statespace, prop);
 			}
 			SimulationResult res = runSim(prop, s);
 			synchronized(ret) {
@@ -203,7 +522,7 @@ class Main {
 			if (prop.type == Property.Type.EXPECTED_VALUE) {
 				System.err.println("WARNING: Importance sampling and expected value queries often give misleading results.");
 			}
-			SchemeZVAv sc = SchemeZVAv.instantiate(statespace, prop);
+			SchemeZVAv sc = instantiateZVAv(statespace, prop);
 			Property nProp = prop;
 			if (multiple)
 				nProp = new Property(prop, prop.name + "-ZVAv");
@@ -230,6 +549,21 @@ class Main {
 		return;
 	}
 
+	private static void runGroup(List<SimulationResult> ret,
+	                             List<Property> props)
+			throws IOException
+	{
+		try {
+			if (props.size() > 1)
+				runSharedSimulations(ret, props);
+			else if (props.size() == 1)
+				runSimulations(ret, props.get(0));
+		} catch (UnsupportedOperationException e2) {
+			String name = props.get(0).name;
+			System.err.println(name + ": " + e2.getMessage());
+		}
+	}
+
 	private static void benchmarkHeader(String[] args, String model)
 	{
 		DateTimeFormatter form = DateTimeFormatter.ofPattern("yyyy-MM-dd");
@@ -444,6 +778,9 @@ class Main {
 			{"Available queries:"},
 			{"-a", "Compute system unavailability."},
 			{"-r T", "Compute unreliability up to time T."},
+			{"-r T1,T2,...", "Compute unreliability up to each of the times"},
+			{"",             "T1, T2, ..., from the same runs."},
+			{"-r A:B:S", "As above, for times A, A+S, ..., up to B."},
 			{"--mttf", "Compute mean time to failure."},
 			{"--prop P", "(For JANI models): compute the property named P."},
 			{"-u", "Compute time-unbounded unreliability."},
@@ -451,11 +788,35 @@ class Main {
 			{"-e E", "Simulate until an absolute of E has been reached."},
 			{"--relErr E", "Simulate until a relative of E has been reached."},
 			{"-n N", "Simulate exactly N runs."},
+			{"--sequential", "With --relErr, pool the runs of all rounds into"},
+			{"",             "one estimate instead of intersecting the"},
+			{"",             "intervals of separate rounds."},
+			{"--shared-traces", "Estimate reachability properties with the same"},
+			{"",                "targets (or all, with --mc) from the same runs."},
+			{"--estimates F", "Write the current estimates to file F every second,"},
+			{"",              "as one JSON object per line."},
+			{"--estimates-interval T", "Write the estimates every T seconds instead."},
+			{"--checkpoint F", "With --relErr, periodically save the state of the"},
+			{"",               "simulations to files named F.<property>"},
+			{"",               "(implies --sequential)."},
+			{"--resume", "Continue from the checkpoints given by --checkpoint."},
+			{"--batch B", "Simulate B traces in lockstep (for reachability"},
+			{"",          "using --mc, or time-unbounded using ZVA-v)."},
 			{"--rng <rng>", "Set the RNG type, available choices are:"},
 			{"",            "  \"XS128\":   Xoroshiro-128"},
+			{"",            "  \"XS256PP\": Xoshiro-256++"},
 			{"",            "  \"mt19937\": Mersenne Twister"},
 			{"-s N", "Set initial seed for the RNG."},
+			{"--reproducible", "Derive the random numbers from the index of each"},
+			{"",               "sample, so the results for a seed do not depend on"},
+			{"",               "the number of threads or worker processes."},
+			{"--ziggurat", "Draw sojourn times using the ziggurat method,"},
+			{"",           "avoiding most logarithms (not when forcing)."},
 			{"-t T", "Simulate for approximately T seconds."},
+			{"--workers N", "Run the simulations in N local worker processes."},
+			{"--worker-cmd C", "Run the simulations in a worker process started"},
+			{"",               "by the shell command C (e.g., \"ssh host java"},
+			{"",               "-jar DFTRES.jar\"), may be repeated."},
 			{"Rare event simulation options:"},
 			{"--acc F", "Accelerate transitions by the constant factor F."},
 			{"--mc", "Using standard Monte Carlo to choose transition probabilities."},
@@ -466,7 +827,20 @@ class Main {
 			{"-f F", "Stop time-forcing when the importance factor drops below F."},
 			{"--no-forcing", "Do not apply time-forcing."},
 			{"--no-hpc-boost", "Do not boost HPC sink transitions (only affects time-bounded reachability"},
+			{"--hpc-phase-type", "Draw the times spent in HPCs directly instead of"},
+			{"",                 "walking through them (time-bounded properties)."},
 			{"Model (optimization) options:"},
+			{"--packed-states", "Store the explored states bit-packed in a"},
+			{"",                "compact arena, saving memory on large models."},
+			{"--tree-states", "Store the explored states tree-compressed, using"},
+			{"",              "memory nearly independent of the vector length."},
+			{"--explicit", "Explore the full state space before simulating,"},
+			{"",           "for models that fit in memory."},
+			{"--neighbour-cache M", "Cache the successors of at most about M MB of"},
+			{"",                    "states (default: a quarter of the heap)."},
+			{"--cache-stats", "Report the hits, misses and evictions of the"},
+			{"",              "successor and path probability caches after each"},
+			{"",              "simulation."},
 			{"--compose full", "Compute the full parallel composition explicitly."},
 			{"--compose none", "Do not explicitly compute any parallel composition."},
 			{"--compose N", "Explicitly compute parallel compositions of automata as"},
@@ -531,8 +905,10 @@ class Main {
 				benchmarkPostSim(time, goodResults, seed);
 			else
 				showResults(time, goodResults);
-			if (currentSimulator != null) {
-				SimulationResult res = currentSimulator.getCurrentEstimate(1-confidence);
+			SimulationResult res = null;
+			if (currentSimulator != null)
+				res = currentSimulator.getCurrentEstimate(1-confidence);
+			if (res != null) {
 				System.err.println("***Unexpected interruption***");
 				System.err.println("Best estimate for property " + res.property.name + ":");
 				System.err.println(res.toString());
@@ -552,6 +928,8 @@ class Main {
 		TreeMap<String, Number> constants = new TreeMap<>();
 		TreeSet<String> onlyProperties = new TreeSet<>();
 		String useRng = "XS128";
+		int localWorkers = 0, workerStream = -1;
+		ArrayList<String> workerCommands = new ArrayList<>();
 		if (args.length == 1 && args[0].equals("--version")) {
 			System.out.println("Version: " + Version.version);
 			System.exit(0);
@@ -596,10 +974,34 @@ class Main {
 				Simulator.coresToUse = Integer.parseInt(args[++i]);
 			else if (args[i].equals("--progress"))
 				Simulator.showProgress = true;
+			else if (args[i].equals("--reproducible"))
+				Simulator.reproducible = true;
+			else if (args[i].equals("--ziggurat"))
+				TraceGenerator.useZiggurat = true;
 			else if (args[i].equals("--acc"))
 				TraceGenerator.acceleration = Double.parseDouble(args[++i]);
 			else if (args[i].equals("--relErr"))
 				relErr = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--shared-traces"))
+				sharedTraces = true;
+			else if (args[i].equals("--batch"))
+				batchSize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--estimates"))
+				estimateStream = new PrintStream(new FileOutputStream(args[++i]), true);
+			else if (args[i].equals("--estimates-interval"))
+				estimateInterval = Math.round(Double.parseDouble(args[++i]) * 1000);
+			else if (args[i].equals("--checkpoint"))
+				checkpointBase = args[++i];
+			else if (args[i].equals("--resume"))
+				resume = true;
+			else if (args[i].equals("--workers"))
+				localWorkers = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--worker-cmd"))
+				workerCommands.add(args[++i]);
+			else if (args[i].equals("--worker"))
+				workerStream = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--sequential"))
+				Simulator.sequentialRelErr = true;
 			else if (args[i].equals("--mc"))
 				mc = true;
 			else if (args[i].equals("--zvad"))
@@ -656,6 +1058,20 @@ class Main {
 				forceBound = Double.POSITIVE_INFINITY;
 			else if (args[i].equals("--no-hpc-boost"))
 				TraceGenerator.enableHpcBoost = false;
+			else if (args[i].equals("--hpc-phase-type"))
+				SearchAlgorithm.phaseTypeHPCs = true;
+			else if (args[i].equals("--packed-states"))
+				StateSpace.usePackedStates = true;
+			else if (args[i].equals("--tree-states"))
+				StateSpace.useTreeStates = true;
+			else if (args[i].equals("--explicit"))
+				explicitModel = true;
+			else if (args[i].equals("--neighbour-cache"))
+				NeighbourCache.defaultBudget = (long)(Double.parseDouble(args[++i]) * 1048576);
+			else if (args[i].equals("--cache-stats")) {
+				cacheStats = true;
+				NeighbourCache.countHits = true;
+			}
 			else if (args[i].equals("--storm")) {
 				useStorm = true;
 				if (!constants.containsKey("TIME_BOUND"))
@@ -679,10 +1095,17 @@ class Main {
 				properties.add(rel);
 				onlyProperties.add(rel.name);
 			} else if (args[i].equals("-r")) {
-				double time = Double.parseDouble(args[++i]);
-				Property rel = new Property(Property.Type.REACHABILITY, time, new VariableExpression(failedVar), null, "Unreliability");
-				properties.add(rel);
-				onlyProperties.add(rel.name);
+				double[] times = parseTimes(args[++i]);
+				for (double time : times) {
+					String name = "Unreliability";
+					if (times.length > 1)
+						name += "@" + time;
+					Property rel = new Property(Property.Type.REACHABILITY, time, new VariableExpression(failedVar), null, name);
+					properties.add(rel);
+					onlyProperties.add(rel.name);
+					if (times.length > 1)
+						curveProperties.add(rel.name);
+				}
 			} else if (args[i].equals("--mttf")) {
 				Property mttf = new Property(Property.Type.EXPECTED_VALUE, Double.POSITIVE_INFINITY, new VariableExpression(failedVar), null, "MTTF", new ConstantExpression(1), null);
 				properties.add(mttf);
@@ -692,10 +1115,89 @@ class Main {
 
 		if (!haveSeed)
 			seed = new SecureRandom().nextLong();
+		if (checkpointBase != null && Double.isNaN(relErr))
+			System.err.println("Warning: Checkpoints are only written when simulating up to a relative error.");
+		else if (checkpointBase != null && !Simulator.sequentialRelErr) {
+			/* Only the pooled rounds can be checkpointed. */
+			System.err.println("Warning: --checkpoint implies --sequential.");
+			Simulator.sequentialRelErr = true;
+		}
+		if (resume && checkpointBase == null) {
+			System.err.println("--resume requires --checkpoint.");
+			System.exit(-1);
+		}
+		if (checkpointBase != null) {
+			String options = String.join(" ",
+				"constants=" + constants,
+				"compose=" + compositionStateLimit,
+				"dc=" + doDontCareElimination,
+				"storm=" + useStorm,
+				"unsafe=" + unsafeComposition,
+				"epsilon=" + epsilon,
+				"confidence=" + confidence,
+				"schemes=" + mc + "," + zvav + "," + zvad
+				        + "," + zvat + "," + unif,
+				"force=" + forceBound,
+				"acc=" + TraceGenerator.acceleration,
+				"ziggurat=" + TraceGenerator.useZiggurat,
+				"hpcBoost=" + TraceGenerator.enableHpcBoost,
+				"phaseType=" + SearchAlgorithm.phaseTypeHPCs,
+				"batch=" + batchSize,
+				"shared=" + sharedTraces,
+				"sequential=" + Simulator.sequentialRelErr,
+				"reproducible=" + Simulator.reproducible,
+				"rng=" + useRng.toLowerCase(),
+				"seed=" + seed,
+				"threads=" + Simulator.coresToUse);
+			fingerprint = fingerprint(filename, options);
+		}
 		if (useRng.equalsIgnoreCase("xs128")) {
 			rng = new XoroShiro128RandomSource(seed);
-		} else if (useRng.equalsIgnoreCase("mt199937")) {
+		} else if (useRng.equalsIgnoreCase("xs256pp")) {
+			rng = new Xoshiro256PlusPlusRandomSource(seed);
+		} else if (useRng.equalsIgnoreCase("mt19937")
+		           || useRng.equalsIgnoreCase("mt199937")) {
 			rng = new MersenneTwisterFast(seed);
+		} else {
+			System.err.println("Unknown RNG: " + useRng);
+			System.exit(-1);
+		}
+		long finalSeed = seed;
+		if ((workerStream >= 0 || localWorkers > 0
+		     || !workerCommands.isEmpty())
+		    && !Simulator.reproducible
+		    && !(rng instanceof RandomGenerator.LeapableGenerator))
+		{
+			System.err.println("RNG " + useRng + " does not support worker processes, use --rng xs128 or xs256pp.");
+			System.exit(-1);
+		}
+		if (workerStream >= 0) {
+			/* Give each worker its own stream of random
+			 * numbers (unless they are tied to the samples),
+			 * disjoint from those of the other workers and
+			 * the coordinator, and keep standard output for
+			 * the coordinator. */
+			if (!Simulator.reproducible) {
+				RandomGenerator.LeapableGenerator l;
+				l = (RandomGenerator.LeapableGenerator)rng;
+				for (int i = 0; i <= workerStream; i++)
+					l.leap();
+			}
+			coordinatorIn = new BufferedReader(new InputStreamReader(System.in));
+			coordinatorOut = System.out;
+			System.setOut(System.err);
+		} else if (localWorkers > 0 || !workerCommands.isEmpty()) {
+			if (checkpointBase != null) {
+				System.err.println("Checkpoints are not supported with worker processes.");
+				System.exit(-1);
+			}
+			if (!Double.isNaN(relErr)) {
+				System.err.println("Simulating up to a relative error is not supported with worker processes.");
+				System.exit(-1);
+			}
+			String[] options = Arrays.copyOf(args, args.length - 1);
+			workerProcs = startWorkers(options, filename, seed,
+			                           localWorkers, workerCommands);
 		}
 
 		model = loadModel(filename, constants, onlyProperties, doDontCareElimination, useStorm, compositionStateLimit);
@@ -727,24 +1229,39 @@ class Main {
 		if (jsonOutput && !properties.isEmpty())
 			benchmarkHeader(args, filename);
 
-		long finalSeed = seed;
 		ArrayList<SimulationResult> results = new ArrayList<>();
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				terminate(results, startTime, finalSeed);
-			}
-		});
+		if (coordinatorIn == null) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					terminate(results, startTime, finalSeed);
+				}
+			});
+		}
 
+		/* Properties are sorted by type and targets, so any
+		 * properties that can share traces are consecutive. */
+		ArrayList<Property> group = new ArrayList<>();
 		for (Property prop : properties) {
 			if (!onlyProperties.isEmpty() && !onlyProperties.contains(prop.name))
 				continue;
-			try {
-				runSimulations(results, prop);
-			} catch (UnsupportedOperationException e2) {
-				System.err.println(prop.name + ": " + e2.getMessage());
+			if (canShareTraces(prop)) {
+				if (!group.isEmpty()
+				    && !mc && !group.get(0).sameTargets(prop))
+				{
+					runGroup(results, group);
+					group.clear();
+				}
+				group.add(prop);
+				continue;
 			}
+			runGroup(results, group);
+			group.clear();
+			runGroup(results, List.of(prop));
 		}
+		runGroup(results, group);
+		if (workerProcs != null)
+			workerProcs.close();
 		/* Results are dumped by the shutdown hook */
 		System.exit(0);
 	}
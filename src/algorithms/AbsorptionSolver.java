@@ -0,0 +1,260 @@
+package algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Solves (I - P) X = B, where P is the matrix of internal transition
+ * probabilities of an HPC (so I - P is nonsingular as long as every
+ * state of the HPC can leave it).
+ *
+ * Small systems are solved exactly by LU decomposition, which is
+ * computed only once for any number of right-hand sides. Larger ones
+ * are solved iteratively (by BiCGSTAB) using the sparse rows of P.
+ */
+final class AbsorptionSolver
+{
+	/** Largest system solved by LU decomposition. */
+	public static final int DENSE_MAX = 1024;
+	/* Relative residual at which iterative solving stops */
+	private static final double THRESHOLD = 1e-12;
+	/* Bound on the work (in multiplications) of iterative solving,
+	 * for each right-hand side */
+	private static final long MAX_WORK = 1L << 32;
+
+	private final int n;
+	/* Dense: LU decomposition of I - P, with row permutation. */
+	private double[][] lu;
+	private int[] perm;
+	/* Sparse: off-diagonal entries of P by row, and the diagonal
+	 * of I - P. */
+	private int[][] cols;
+	private double[][] vals;
+	private double[] diag;
+
+	/**
+	 * @param T Matrix with at least n columns, of which the first n
+	 * form P.
+	 */
+	public AbsorptionSolver(double[][] T, int n)
+	{
+		this.n = n;
+		if (n <= DENSE_MAX)
+			decompose(T);
+		else
+			sparse(T);
+	}
+
+	private void decompose(double[][] T)
+	{
+		lu = new double[n][n];
+		perm = new int[n];
+		for (int i = 0; i < n; i++) {
+			perm[i] = i;
+			for (int j = 0; j < n; j++)
+				lu[i][j] = (i == j ? 1 : 0) - T[i][j];
+		}
+		for (int k = 0; k < n; k++) {
+			int p = k;
+			for (int i = k + 1; i < n; i++) {
+				if (Math.abs(lu[i][k]) > Math.abs(lu[p][k]))
+					p = i;
+			}
+			double[] t = lu[p]; lu[p] = lu[k]; lu[k] = t;
+			int ti = perm[p]; perm[p] = perm[k]; perm[k] = ti;
+			double[] rk = lu[k];
+			double pivot = rk[k];
+			if (pivot == 0)
+				continue;
+			for (int i = k + 1; i < n; i++) {
+				double[] ri = lu[i];
+				double f = ri[k] / pivot;
+				ri[k] = f;
+				if (f == 0)
+					continue;
+				for (int j = k + 1; j < n; j++)
+					ri[j] = Math.fma(-f, rk[j], ri[j]);
+			}
+		}
+	}
+
+	private void sparse(double[][] T)
+	{
+		cols = new int[n][];
+		vals = new double[n][];
+		diag = new double[n];
+		for (int i = 0; i < n; i++) {
+			int m = 0;
+			for (int j = 0; j < n; j++) {
+				if (j != i && T[i][j] != 0)
+					m++;
+			}
+			cols[i] = new int[m];
+			vals[i] = new double[m];
+			m = 0;
+			for (int j = 0; j < n; j++) {
+				if (j != i && T[i][j] != 0) {
+					cols[i][m] = j;
+					vals[i][m++] = T[i][j];
+				}
+			}
+			diag[i] = 1 - T[i][i];
+		}
+	}
+
+	/**
+	 * Solve (I - P) X = B.
+	 *
+	 * @param B The right-hand sides, as an n by m matrix.
+	 * @return X, or null if the system is singular or iteration
+	 * did not converge.
+	 */
+	public double[][] solve(double[][] B)
+	{
+		if (lu != null)
+			return solveDense(B);
+		return solveSparse(B);
+	}
+
+	private double[][] solveDense(double[][] B)
+	{
+		int m = B[0].length;
+		double[][] X = new double[n][];
+		for (int i = 0; i < n; i++)
+			X[i] = B[perm[i]].clone();
+		for (int i = 0; i < n; i++) {
+			double[] xi = X[i];
+			for (int k = 0; k < i; k++) {
+				double f = lu[i][k];
+				if (f == 0)
+					continue;
+				double[] xk = X[k];
+				for (int j = 0; j < m; j++)
+					xi[j] = Math.fma(-f, xk[j], xi[j]);
+			}
+		}
+		for (int i = n - 1; i >= 0; i--) {
+			double[] xi = X[i];
+			for (int k = i + 1; k < n; k++) {
+				double f = lu[i][k];
+				if (f == 0)
+					continue;
+				double[] xk = X[k];
+				for (int j = 0; j < m; j++)
+					xi[j] = Math.fma(-f, xk[j], xi[j]);
+			}
+			double pivot = lu[i][i];
+			if (pivot == 0)
+				return null;
+			for (int j = 0; j < m; j++)
+				xi[j] /= pivot;
+		}
+		return X;
+	}
+
+	/* y = (I - P) x */
+	private void multiply(double[] x, double[] y)
+	{
+		for (int i = 0; i < n; i++) {
+			double v = diag[i] * x[i];
+			int[] c = cols[i];
+			double[] p = vals[i];
+			for (int k = 0; k < c.length; k++)
+				v = Math.fma(-p[k], x[c[k]], v);
+			y[i] = v;
+		}
+	}
+
+	private static double dot(double[] a, double[] b)
+	{
+		double ret = 0;
+		for (int i = 0; i < a.length; i++)
+			ret = Math.fma(a[i], b[i], ret);
+		return ret;
+	}
+
+	private double[][] solveSparse(double[][] B)
+	{
+		int m = B[0].length;
+		double[][] X = new double[n][m];
+		double[] b = new double[n], x = new double[n];
+		for (int j = 0; j < m; j++) {
+			for (int i = 0; i < n; i++)
+				b[i] = B[i][j];
+			if (!bicgstab(b, x))
+				return null;
+			for (int i = 0; i < n; i++)
+				X[i][j] = x[i];
+		}
+		return X;
+	}
+
+	/**
+	 * Solve (I - P) x = b by BiCGSTAB with Jacobi preconditioning.
+	 *
+	 * @return Whether the iteration converged.
+	 */
+	private boolean bicgstab(double[] b, double[] x)
+	{
+		double bNorm = Math.sqrt(dot(b, b));
+		Arrays.fill(x, 0);
+		if (bNorm == 0)
+			return true;
+		double[] r = b.clone(), r0 = b.clone();
+		double[] p = new double[n], v = new double[n];
+		double[] y = new double[n], z = new double[n], t = new double[n];
+		double rho = 1, alpha = 1, omega = 1;
+		long nnz = n;
+		for (int[] c : cols)
+			nnz += c.length;
+		long maxIts = Math.max(MAX_WORK / nnz, 1);
+		for (long it = 0; it < maxIts; it++) {
+			double rhoNext = dot(r0, r);
+			if (rhoNext == 0 || omega == 0)
+				return false;
+			double beta = (rhoNext / rho) * (alpha / omega);
+			rho = rhoNext;
+			for (int i = 0; i < n; i++) {
+				p[i] = r[i] + beta * (p[i] - omega * v[i]);
+				y[i] = p[i] / diag[i];
+			}
+			multiply(y, v);
+			alpha = rho / dot(r0, v);
+			for (int i = 0; i < n; i++) {
+				x[i] += alpha * y[i];
+				r[i] -= alpha * v[i];
+			}
+			if (converged(b, x, r, bNorm))
+				return true;
+			for (int i = 0; i < n; i++)
+				z[i] = r[i] / diag[i];
+			multiply(z, t);
+			double tt = dot(t, t);
+			omega = tt == 0 ? 0 : dot(t, r) / tt;
+			for (int i = 0; i < n; i++) {
+				x[i] += omega * z[i];
+				r[i] -= omega * t[i];
+			}
+			if (converged(b, x, r, bNorm))
+				return true;
+			if (!Double.isFinite(omega) || !Double.isFinite(alpha))
+				return false;
+		}
+		return false;
+	}
+
+	/* Checks the (normwise) backward error using the updated
+	 * residual r, and if that is small enough, replaces it by the
+	 * true residual in case of drift. The row sums of I - P are at
+	 * most 2 in absolute value. */
+	private boolean converged(double[] b, double[] x, double[] r,
+	                          double bNorm)
+	{
+		double bound = THRESHOLD * (bNorm + 2 * Math.sqrt(dot(x, x)));
+		if (Math.sqrt(dot(r, r)) > bound)
+			return false;
+		multiply(x, r);
+		for (int i = 0; i < n; i++)
+			r[i] = b[i] - r[i];
+		return Math.sqrt(dot(r, r)) <= bound;
+	}
+}
@@ -0,0 +1,370 @@
+package algorithms;
+
+import models.StateSpace;
+import models.StateSpace.State;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import nl.ennoruijters.interval.RandomSource;
+import nl.utwente.ewi.fmt.EXPRES.Property;
+
+/** Tracer to estimate the same probability as ReachabilityTracer,
+ * advancing a batch of traces in lockstep.
+ *
+ * The states visited are numbered on first use, and their outgoing
+ * transitions under the importance sampling scheme are stored in
+ * flat primitive arrays. Each step of the batch is then a few tight
+ * loops over arrays, rather than a walk through State and Neighbours
+ * objects per trace. Traces that finish are replaced by new ones.
+ *
+ * The compiled graph is shared by all copies of a tracer, so every
+ * state is compiled only once. Compiling takes the lock of the graph,
+ * but following the transitions of compiled states does not.
+ *
+ * The results are recorded in the order in which the traces were
+ * started, so the recorded samples are always the first traces
+ * started, regardless of how long each of them took.
+ *
+ * Only schemes whose transition weights do not depend on the time
+ * left (standard Monte Carlo and ZVA-v) are supported, HPCs only for
+ * time-unbounded properties, and no acceleration or path-based
+ * forcing.
+ */
+public class BatchReachabilityTracer extends TraceGenerator
+{
+	private static final byte RED = 1, BLUE = 2, COMPILED = 4;
+	private static final byte NONE = 0, MISS = 1, HIT = 2;
+	private static final VarHandle FLAG
+		= MethodHandles.arrayElementVarHandle(byte[].class);
+
+	private final RandomSource rng;
+	/* Only used to keep the statistics. */
+	private final ReachabilityTracer estimator;
+	private final int batchSize;
+	private final boolean timed, forcing;
+	private final Graph graph;
+	private int initialId = -1;
+
+	/**
+	 * The arrays of the compiled graph. The entries of a state are
+	 * written before its COMPILED flag is set (with release
+	 * semantics) and never change afterwards. When the graph grows,
+	 * the arrays are copied into new ones.
+	 */
+	private static final class Tables
+	{
+		final byte[] flags;
+		final int[] firstEdge, degree;
+		final double[] totalWeight, exitRate;
+		final int[] edgeTarget;
+		final double[] edgeCumWeight, edgeRatio;
+
+		Tables(int states, int edges, Tables old)
+		{
+			flags = new byte[states];
+			firstEdge = new int[states];
+			degree = new int[states];
+			totalWeight = new double[states];
+			exitRate = new double[states];
+			edgeTarget = new int[edges];
+			edgeCumWeight = new double[edges];
+			edgeRatio = new double[edges];
+			if (old == null)
+				return;
+			int n = Math.min(states, old.flags.length);
+			System.arraycopy(old.flags, 0, flags, 0, n);
+			System.arraycopy(old.firstEdge, 0, firstEdge, 0, n);
+			System.arraycopy(old.degree, 0, degree, 0, n);
+			System.arraycopy(old.totalWeight, 0, totalWeight, 0, n);
+			System.arraycopy(old.exitRate, 0, exitRate, 0, n);
+			n = Math.min(edges, old.edgeTarget.length);
+			System.arraycopy(old.edgeTarget, 0, edgeTarget, 0, n);
+			System.arraycopy(old.edgeCumWeight, 0, edgeCumWeight, 0, n);
+			System.arraycopy(old.edgeRatio, 0, edgeRatio, 0, n);
+		}
+	}
+
+	/** The states visited by the copies of a tracer, by number. */
+	private static final class Graph
+	{
+		private final HashMap<State, Integer> ids = new HashMap<>();
+		private State[] stateOf = new State[64];
+		private int numStates, numEdges;
+		volatile Tables current = new Tables(64, 256, null);
+	}
+
+	/* Traces in flight, and the slots of the active ones. */
+	private final boolean[] active;
+	private final int[] live;
+	private final int[] cur;
+	private final long[] seq;
+	private final double[] timeLeft, likelihood;
+	private final double[] uChoice, uDelta;
+
+	/* Results of finished traces, by sequence number modulo the
+	 * length of the buffer. */
+	private final double[] results;
+	private final byte[] resultType;
+	private long nextSeq, nextOut;
+
+	public BatchReachabilityTracer(Random rng, Scheme s, Property prop,
+	                               double forceBound, int batchSize)
+	{
+		this(rng, s, prop, forceBound, batchSize, new Graph());
+	}
+
+	private BatchReachabilityTracer(Random rng, Scheme s, Property prop,
+	                                double forceBound, int batchSize,
+	                                Graph graph)
+	{
+		super(rng, s, prop, forceBound);
+		if (prop.type != Property.Type.REACHABILITY)
+			throw new IllegalArgumentException("Only reachability properties can be simulated in batches.");
+		if (forceBound < 0)
+			throw new UnsupportedOperationException("Batched simulation does not support path-based forcing.");
+		this.rng = RandomSource.of(rng);
+		this.batchSize = batchSize;
+		estimator = new ReachabilityTracer(rng, s, prop, forceBound);
+		timed = prop.timeBound < Double.POSITIVE_INFINITY;
+		forcing = forceBound < 1;
+		this.graph = graph;
+		active = new boolean[batchSize];
+		live = new int[batchSize];
+		cur = new int[batchSize];
+		seq = new long[batchSize];
+		timeLeft = new double[batchSize];
+		likelihood = new double[batchSize];
+		uChoice = new double[batchSize];
+		uDelta = new double[batchSize];
+		results = new double[4 * batchSize];
+		resultType = new byte[4 * batchSize];
+	}
+
+	public TraceGenerator copy()
+	{
+		return new BatchReachabilityTracer(subRNG(), scheme.clone(),
+		                                   prop, forceBound,
+		                                   batchSize, graph);
+	}
+
+	public void reset()
+	{
+		super.reset();
+		estimator.reset();
+		Arrays.fill(active, false);
+		Arrays.fill(resultType, NONE);
+		nextSeq = nextOut = 0;
+	}
+
+	/* The number of the given state, numbered if necessary (under
+	 * the lock of the graph). */
+	private int id(State s)
+	{
+		Graph g = graph;
+		Integer ret = g.ids.get(s);
+		if (ret != null)
+			return ret;
+		int n = g.numStates++;
+		if (n == g.stateOf.length)
+			g.stateOf = Arrays.copyOf(g.stateOf, n * 2);
+		Tables a = g.current;
+		if (n == a.flags.length) {
+			a = new Tables(n * 2, a.edgeTarget.length, a);
+			g.current = a;
+		}
+		byte f = 0;
+		if (prop.isRed(scheme.model, s))
+			f |= RED;
+		if (prop.isBlue(scheme.model, s))
+			f |= BLUE;
+		g.stateOf[n] = s;
+		a.flags[n] = f;
+		g.ids.put(s, n);
+		return n;
+	}
+
+	/** Compile the given state, unless another copy already has. */
+	private void compile(int s)
+	{
+		Graph g = graph;
+		synchronized(g) {
+			if (((byte)FLAG.getAcquire(g.current.flags, s) & COMPILED) != 0)
+				return;
+			State state = g.stateOf[s];
+			if (timed && state instanceof StateSpace.HPCState)
+				throw new UnsupportedOperationException("Batched simulation does not support HPCs in time-bounded properties.");
+			scheme.prepareState(state, prop.timeBound);
+			State[] nbs = scheme.neighbours;
+			double[] weights = scheme.stateWeightsIS;
+			int d = nbs.length;
+			double[] cumWeight = new double[d], ratio = new double[d];
+			double sum = 0;
+			for (int i = 0; i < d; i++) {
+				sum += weights[i];
+				cumWeight[i] = sum;
+				ratio[i] = scheme.likelihood(i, 0);
+			}
+			double rate = scheme.exitRate;
+			/* Numbering the neighbours may reuse the scheme, so
+			 * only do so after reading its current state. */
+			int[] targets = new int[d];
+			for (int i = 0; i < d; i++)
+				targets[i] = id(nbs[i]);
+			Tables a = g.current;
+			int e = g.numEdges;
+			if (e + d > a.edgeTarget.length) {
+				int n = Math.max(a.edgeTarget.length * 2, e + d);
+				a = new Tables(a.flags.length, n, a);
+				g.current = a;
+			}
+			System.arraycopy(targets, 0, a.edgeTarget, e, d);
+			System.arraycopy(cumWeight, 0, a.edgeCumWeight, e, d);
+			System.arraycopy(ratio, 0, a.edgeRatio, e, d);
+			g.numEdges += d;
+			a.firstEdge[s] = e;
+			a.degree[s] = d;
+			a.totalWeight[s] = sum;
+			a.exitRate[s] = rate;
+			FLAG.setRelease(a.flags, s, (byte)(a.flags[s] | COMPILED));
+		}
+	}
+
+	private void start(int j)
+	{
+		if (nextSeq - nextOut >= results.length)
+			return;
+		if (initialId < 0) {
+			synchronized(graph) {
+				initialId = id(scheme.model.getInitialState());
+			}
+		}
+		active[j] = true;
+		cur[j] = initialId;
+		seq[j] = nextSeq++;
+		timeLeft[j] = prop.timeBound;
+		likelihood[j] = 1;
+	}
+
+	private void finish(int j, double value, boolean hit)
+	{
+		int slot = (int)(seq[j] % results.length);
+		results[slot] = value;
+		resultType[slot] = hit ? HIT : MISS;
+		active[j] = false;
+	}
+
+	/** Advance every trace in the batch by one transition. */
+	private void step()
+	{
+		final int n = batchSize;
+		int m = 0;
+		for (int j = 0; j < n; j++) {
+			if (!active[j])
+				start(j);
+			if (active[j])
+				live[m++] = j;
+		}
+		/* Only draw numbers for the active traces. */
+		rng.fill(uChoice, 0, m);
+		if (timed && !forcing && useZiggurat) {
+			/* Draw the (unit rate) sojourn times directly. */
+			for (int k = 0; k < m; k++)
+				uDelta[k] = ZigguratExponential.next(rng);
+		} else if (timed) {
+			rng.fill(uDelta, 0, m);
+		}
+		Tables g = graph.current;
+		for (int k = 0; k < m; k++) {
+			int j = live[k];
+			int s = cur[j];
+			if (((byte)FLAG.getAcquire(g.flags, s) & COMPILED) == 0) {
+				compile(s);
+				g = graph.current;
+			}
+			int d = g.degree[s];
+			if (d == 0) {
+				/* Deadlock */
+				finish(j, 0, false);
+				continue;
+			}
+			int e = g.firstEdge[s];
+			if (d >= StateSpace.Neighbours.CUMULATIVE_MIN_DEGREE) {
+				double u = uChoice[k] * g.totalWeight[s];
+				int hi = e + d - 1;
+				while (e < hi) {
+					int mid = (e + hi) >>> 1;
+					if (u < g.edgeCumWeight[mid])
+						hi = mid;
+					else
+						e = mid + 1;
+				}
+			} else if (d > 1) {
+				double u = uChoice[k] * g.totalWeight[s];
+				int last = e + d - 1;
+				while (e < last && !(u < g.edgeCumWeight[e]))
+					e++;
+			}
+			int t = g.edgeTarget[e];
+			double l = likelihood[j] * g.edgeRatio[e];
+			double left = timeLeft[j];
+			if (timed) {
+				double rate = g.exitRate[s];
+				double delta;
+				if (forcing) {
+					double p = -Math.expm1(-rate * left);
+					l *= p;
+					delta = -Math.log1p(-uDelta[k] * p);
+				} else if (useZiggurat) {
+					delta = uDelta[k];
+				} else {
+					delta = -Math.log1p(-uDelta[k]);
+				}
+				left -= delta / rate;
+				timeLeft[j] = left;
+			}
+			cur[j] = t;
+			likelihood[j] = l;
+			byte f = g.flags[t];
+			if ((f & RED) != 0 && left > 0)
+				finish(j, l, true);
+			else if ((f & (RED | BLUE)) != 0
+			         || !(left > 0) || !(l > 0))
+				finish(j, 0, false);
+		}
+	}
+
+	public void sample()
+	{
+		int slot = (int)(nextOut % results.length);
+		while (resultType[slot] == NONE)
+			step();
+		estimator.stats.add(results[slot], resultType[slot] == HIT);
+		resultType[slot] = NONE;
+		nextOut++;
+	}
+
+	public SimulationResult getResult(double alpha)
+	{
+		return estimator.getResult(alpha);
+	}
+
+	public SimulationResult getResult(TraceGenerator[] ts, double alpha)
+	{
+		SampleStatistics total = new SampleStatistics(1);
+		for (TraceGenerator t : ts) {
+			if (t instanceof BatchReachabilityTracer) {
+				BatchReachabilityTracer bt;
+				bt = (BatchReachabilityTracer)t;
+				total.merge(bt.estimator.stats.snapshot());
+			}
+		}
+		return estimator.getResult(total, alpha);
+	}
+
+	public SampleStatistics[] getStatistics()
+	{
+		return new SampleStatistics[] {estimator.stats};
+	}
+}
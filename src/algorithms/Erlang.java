@@ -0,0 +1,175 @@
+package algorithms;
+
+import nl.ennoruijters.interval.RandomSource;
+
+/**
+ * Erlang distributed random numbers (with rate 1), i.e., the sum of k
+ * independent exponentially distributed numbers, in time independent
+ * of k.
+ *
+ * Besides plain draws, draws conditional on being below a bound are
+ * supported (by inverting the distribution function), for forcing
+ * the exit times of HPCs.
+ */
+final class Erlang
+{
+	/* Below this, multiplying uniforms is faster than Marsaglia-Tsang. */
+	private static final int SMALL = 12;
+	private static final int MAX_ITS = 1 << 20;
+	private static final double EPS = 1e-15;
+	private static final double LOG_SQRT_2PI = 0.91893853320467274178;
+	/* Above this probability of being below the bound, draw by
+	 * rejection rather than inversion. */
+	private static final double REJECT_MIN = 0.25;
+	/* log((k-1)!) for small k */
+	private static final double[] logGammas = new double[20];
+
+	static {
+		for (int k = 2; k < logGammas.length; k++)
+			logGammas[k] = logGammas[k - 1] + Math.log(k - 1);
+	}
+
+	private Erlang() { }
+
+	/** Draw the sum of k exponentially distributed numbers. */
+	public static double draw(RandomSource rng, int k)
+	{
+		if (k < SMALL) {
+			double prod = 1;
+			for (int i = 0; i < k; i++)
+				prod *= 1 - rng.randDouble();
+			return -Math.log(prod);
+		}
+		/* Marsaglia and Tsang, "A simple method for generating
+		 * gamma variables", 2000. */
+		double d = k - 1.0 / 3;
+		double c = 1 / Math.sqrt(9 * d);
+		while (true) {
+			double x = normal(rng);
+			double v = 1 + c * x;
+			if (v <= 0)
+				continue;
+			v = v * v * v;
+			double u = 1 - rng.randDouble();
+			double x2 = x * x;
+			if (u < 1 - 0.0331 * x2 * x2)
+				return d * v;
+			if (Math.log(u) < 0.5 * x2 + d * (1 - v + Math.log(v)))
+				return d * v;
+		}
+	}
+
+	/** Standard normal draw (Marsaglia's polar method). */
+	private static double normal(RandomSource rng)
+	{
+		double x, y, s;
+		do {
+			x = 2 * rng.randDouble() - 1;
+			y = 2 * rng.randDouble() - 1;
+			s = x * x + y * y;
+		} while (s >= 1 || s == 0);
+		return x * Math.sqrt(-2 * Math.log(s) / s);
+	}
+
+	/** log((k-1)!) */
+	private static double logGamma(int k)
+	{
+		if (k < logGammas.length)
+			return logGammas[k];
+		double x = k, x2 = x * x;
+		double corr = (1.0/12 - (1.0/360 - 1 / (1260 * x2)) / x2) / x;
+		return (x - 0.5) * Math.log(x) - x + LOG_SQRT_2PI + corr;
+	}
+
+	/**
+	 * The probability that the sum of k exponentially distributed
+	 * numbers is at most x (the regularized incomplete gamma
+	 * function).
+	 */
+	public static double cdf(int k, double x)
+	{
+		return cdf(k, x, logGamma(k));
+	}
+
+	private static double cdf(int k, double x, double logGammaK)
+	{
+		if (!(x > 0))
+			return 0;
+		if (x == Double.POSITIVE_INFINITY)
+			return 1;
+		double logFactor = k * Math.log(x) - x - logGammaK;
+		if (x < k + 1) {
+			/* Series expansion */
+			double del = 1.0 / k, sum = del;
+			for (int n = 1; n < MAX_ITS; n++) {
+				del *= x / (k + n);
+				sum += del;
+				if (del < sum * EPS)
+					break;
+			}
+			return sum * Math.exp(logFactor);
+		}
+		/* Continued fraction for the complement (modified Lentz) */
+		double tiny = 1e-300;
+		double b = x + 1 - k, c = 1 / tiny, d = 1 / b, h = d;
+		for (int n = 1; n < MAX_ITS; n++) {
+			double an = -n * (n - k);
+			b += 2;
+			d = an * d + b;
+			if (Math.abs(d) < tiny)
+				d = tiny;
+			c = b + an / c;
+			if (Math.abs(c) < tiny)
+				c = tiny;
+			d = 1 / d;
+			double del = d * c;
+			h *= del;
+			if (Math.abs(del - 1) < EPS)
+				break;
+		}
+		return 1 - Math.exp(logFactor) * h;
+	}
+
+	/**
+	 * Draw the sum of k exponentially distributed numbers,
+	 * conditional on it being below x.
+	 *
+	 * @param px cdf(k, x), which the caller usually needs anyway
+	 * for the likelihood ratio.
+	 */
+	public static double drawBelow(RandomSource rng, int k, double x,
+	                               double px)
+	{
+		if (px >= REJECT_MIN) {
+			double ret;
+			do {
+				ret = draw(rng, k);
+			} while (ret >= x);
+			return ret;
+		}
+		double target = rng.randDouble() * px;
+		if (!(target > 0))
+			return 0;
+		double lo = 0, hi = x;
+		double lg = logGamma(k);
+		/* For small t, cdf(k, t) is about t^k / k! */
+		double t = Math.exp((Math.log(target) + lg + Math.log(k)) / k);
+		if (!(t > lo && t < hi))
+			t = (lo + hi) / 2;
+		for (int i = 0; i < 200; i++) {
+			double diff = cdf(k, t, lg) - target;
+			if (diff < 0)
+				lo = t;
+			else
+				hi = t;
+			double density = Math.exp((k - 1) * Math.log(t) - t - lg);
+			double next = t - diff / density;
+			if (!(next > lo && next < hi))
+				next = (lo + hi) / 2;
+			if (Math.abs(next - t) <= t * EPS * 4 || lo == hi)
+				return next;
+			t = next;
+		}
+		return t;
+	}
+}
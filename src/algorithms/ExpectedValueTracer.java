@@ -11,11 +11,7 @@ import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
  */
 public class ExpectedValueTracer extends TraceGenerator
 {
-	private long N;
-	private long M;
-	private double sum;
-	private double sumSquares;
-	private double estMean;
+	private final SampleStatistics stats = new SampleStatistics(1);
 	private final double UNIF_BOUND = 1e-10;
 
 	public ExpectedValueTracer(Random rng, Scheme s, Property prop,
@@ -26,41 +22,14 @@ public class ExpectedValueTracer extends TraceGenerator
 
 	public ExpectedValueTracer copy()
 	{
-		ExpectedValueTracer ret;
-		ret = new ExpectedValueTracer(subRNG(), scheme.clone(),
-		                              prop, forceBound);
-		ret.estMean = estMean;
-		return ret;
+		return new ExpectedValueTracer(subRNG(), scheme.clone(),
+		                               prop, forceBound);
 	}
 
 	public void reset()
 	{
 		super.reset();
-		N = M = 0;
-		sum = sumSquares = estMean = 0;
-	}
-
-	public void resetAndEstimateMeans()
-	{
-		double newEstMean = 0;
-		if (N > 0)
-			newEstMean = sum / N;
-		super.resetAndEstimateMeans();
-		estMean = newEstMean;
-	}
-
-	public void resetAndEstimateMeans(TraceGenerator[] ts)
-	{
-		double sum = 0;
-		long N = 0;
-		super.resetAndEstimateMeans(ts);
-		for (TraceGenerator t : ts) {
-			if (t instanceof ExpectedValueTracer) {
-				sum += ((ExpectedValueTracer)t).sum;
-				N += ((ExpectedValueTracer)t).N;
-			}
-		}
-		estMean = sum / N;
+		stats.clear();
 	}
 
 	public void sample()
@@ -100,57 +69,42 @@ public class ExpectedValueTracer extends TraceGenerator
 		if (prop.transientReward != null)
 			reward += evaluate(prop.transientReward, state);
 
-		synchronized(this) {
-			N++;
-			if (reward > 0)
-				M++;
-			sum = Math.fma(reward, likelihood, sum);
-			double diffEst = Math.fma(reward, likelihood, -estMean);
-			sumSquares = Math.fma(diffEst, diffEst, sumSquares);
-		}
+		stats.add(reward * likelihood, reward > 0);
 	}
 
-	public synchronized SimulationResult getResult(double alpha)
+	public SimulationResult getResult(double alpha)
+	{
+		return getResult(stats.snapshot(), alpha);
+	}
+
+	private SimulationResult getResult(SampleStatistics stats,
+	                                   double alpha)
 	{
 		long time = getElapsedTime();
+		long N = stats.getN(), M = stats.getM();
 		if (M == 0) {
 			return new SimulationResult(prop, 0, alpha, Double.NaN,
 					0, 1, new long[]{N, M}, time,
 					scheme.storedStates());
 		}
-		double mean = sum / N;
-		double estSum = Math.fma(-N, estMean, sum);
-		double var = Math.fma(-estSum, estSum / N, sumSquares);
-		var /= N - 1;
-		SimulationResult ret = null;
-
-		if (ret == null)
-			ret = new SimulationResult(prop, alpha, mean, var, new long[]{N, M}, time, scheme.storedStates());
-		return ret;
+		double mean = stats.getMean(0);
+		double var = stats.getVariance(0);
+		return new SimulationResult(prop, alpha, mean, var, new long[]{N, M}, time, scheme.storedStates());
 	}
 
 	public SimulationResult getResult(TraceGenerator[] ts, double alpha)
 	{
-		sum = 0;
-		N = M = 0;
+		SampleStatistics total = new SampleStatistics(1);
 		for (TraceGenerator t : ts) {
-			if (t instanceof ExpectedValueTracer) {
-				ExpectedValueTracer rt = (ExpectedValueTracer)t;
-				synchronized(rt) {
-					if (estMean != rt.estMean) {
-						sum = 0;
-						sumSquares = 0;
-						N = M = 0;
-					}
-					estMean = rt.estMean;
-					sum += rt.sum;
-					sumSquares += rt.sumSquares;
-					N += rt.N;
-					M += rt.M;
-				}
-			}
+			if (t instanceof ExpectedValueTracer)
+				total.merge(((ExpectedValueTracer)t).stats.snapshot());
 		}
-		return getResult(alpha);
+		return getResult(total, alpha);
+	}
+
+	public SampleStatistics[] getStatistics()
+	{
+		return new SampleStatistics[] {stats};
 	}
 
 	private double evaluate(Expression exp, StateSpace.State state)
@@ -0,0 +1,132 @@
+package algorithms;
+
+import models.StateSpace;
+import models.StateSpace.State;
+import java.util.Random;
+import nl.utwente.ewi.fmt.EXPRES.Property;
+
+/** Tracer to estimate several reachability probabilities from the
+ * same traces.
+ *
+ * Each trace is continued until every property is decided (i.e., it
+ * has hit a red or blue state of that property, or exceeded its time
+ * bound), so the time horizon of the traces is the largest time
+ * bound. All properties share the likelihood of the trace, so the
+ * properties must either use standard Monte Carlo or share the
+ * targets on which the importance sampling scheme is based.
+ */
+public class MultiReachabilityTracer extends TraceGenerator
+{
+	private final Property[] props;
+	private final SampleStatistics[] stats;
+	private final double horizon;
+	private final boolean timed;
+	private final boolean[] decided;
+
+	public MultiReachabilityTracer(Random rng, Scheme s,
+	                               Property[] props, double forceBound)
+	{
+		super(rng, s, props[0], forceBound);
+		if (forceBound < 0)
+			throw new IllegalArgumentException("Path-based forcing is not supported for shared traces.");
+		this.props = props;
+		stats = new SampleStatistics[props.length];
+		double h = 0;
+		boolean anyBound = false;
+		for (int i = 0; i < props.length; i++) {
+			if (props[i].type != Property.Type.REACHABILITY)
+				throw new IllegalArgumentException("Only reachability properties can share traces.");
+			stats[i] = new SampleStatistics(1);
+			h = Math.max(h, props[i].timeBound);
+			if (props[i].timeBound < Double.POSITIVE_INFINITY)
+				anyBound = true;
+		}
+		horizon = h;
+		timed = anyBound;
+		decided = new boolean[props.length];
+	}
+
+	public TraceGenerator copy()
+	{
+		return new MultiReachabilityTracer(subRNG(), scheme.clone(),
+		                                   props, forceBound);
+	}
+
+	public void reset()
+	{
+		super.reset();
+		for (SampleStatistics st : stats)
+			st.clear();
+	}
+
+	public void sample()
+	{
+		double time = 0;
+		double likelihood = 1;
+		StateSpace model = scheme.model;
+		State state = model.getInitialState();
+		int undecided = props.length;
+		for (int i = 0; i < props.length; i++)
+			decided[i] = false;
+
+		do {
+			state = drawNextState(state, horizon - time);
+			if (timed)
+				time += drawDelta(horizon - time);
+			likelihood *= likelihood();
+			for (int i = 0; i < props.length; i++) {
+				if (decided[i])
+					continue;
+				Property prop = props[i];
+				if (time >= prop.timeBound) {
+					stats[i].add(0, false);
+				} else if (prop.isRed(model, state)) {
+					stats[i].add(likelihood, true);
+				} else if (prop.isBlue(model, state)
+				           || isDeadlocked()
+				           || likelihood <= 0)
+				{
+					stats[i].add(0, false);
+				} else {
+					continue;
+				}
+				decided[i] = true;
+				undecided--;
+			}
+		} while (undecided > 0);
+	}
+
+	public SimulationResult getResult(double alpha)
+	{
+		return ReachabilityTracer.result(this, props[0],
+		                                 stats[0].snapshot(), alpha);
+	}
+
+	public SimulationResult getResult(TraceGenerator[] ts, double alpha)
+	{
+		return getResults(ts, alpha)[0];
+	}
+
+	public SimulationResult[] getResults(TraceGenerator[] ts, double alpha)
+	{
+		SimulationResult[] ret = new SimulationResult[props.length];
+		for (int i = 0; i < props.length; i++) {
+			SampleStatistics total = new SampleStatistics(1);
+			for (TraceGenerator t : ts) {
+				if (t instanceof MultiReachabilityTracer) {
+					MultiReachabilityTracer mt;
+					mt = (MultiReachabilityTracer)t;
+					total.merge(mt.stats[i].snapshot());
+				}
+			}
+			ret[i] = ReachabilityTracer.result(this, props[i],
+			                                   total, alpha);
+		}
+		return ret;
+	}
+
+	public SampleStatistics[] getStatistics()
+	{
+		return stats.clone();
+	}
+}
@@ -0,0 +1,94 @@
+package algorithms;
+
+import models.StateSpace.State;
+import java.util.Arrays;
+
+/**
+ * The number of visits to each state on a path, for path-based
+ * forcing.
+ *
+ * This is an open-addressing hash table that is meant to be reused for
+ * every trace: clear() only touches the states that were added, and no
+ * objects are allocated once the tables are large enough for the
+ * longest path seen so far. The states are enumerated in the order in
+ * which they were first visited.
+ */
+final class PathCounts
+{
+	private State[] keys = new State[64];
+	private int[] visits = new int[64];
+	/* Slots of the states on the path, in order of first visit. */
+	private int[] slots = new int[32];
+	private int size;
+
+	private static int slot(State s, int mask)
+	{
+		int h = s.hashCode() * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/** Count one more visit to the given state. */
+	public void add(State s)
+	{
+		int mask = keys.length - 1;
+		int i = slot(s, mask);
+		State k;
+		while ((k = keys[i]) != null) {
+			if (k == s || k.equals(s)) {
+				visits[i]++;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = s;
+		visits[i] = 1;
+		if (size == slots.length)
+			slots = Arrays.copyOf(slots, size * 2);
+		slots[size++] = i;
+		if (size * 2 > keys.length)
+			grow();
+	}
+
+	private void grow()
+	{
+		State[] oldKeys = keys;
+		int[] oldVisits = visits;
+		keys = new State[oldKeys.length * 2];
+		visits = new int[keys.length];
+		int mask = keys.length - 1;
+		for (int j = 0; j < size; j++) {
+			int old = slots[j];
+			int i = slot(oldKeys[old], mask);
+			while (keys[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[old];
+			visits[i] = oldVisits[old];
+			slots[j] = i;
+		}
+	}
+
+	public void clear()
+	{
+		for (int j = 0; j < size; j++)
+			keys[slots[j]] = null;
+		size = 0;
+	}
+
+	/** The number of distinct states on the path. */
+	public int size()
+	{
+		return size;
+	}
+
+	/** The j-th distinct state on the path. */
+	public State state(int j)
+	{
+		return keys[slots[j]];
+	}
+
+	/** The number of visits to the j-th distinct state. */
+	public int visits(int j)
+	{
+		return visits[slots[j]];
+	}
+}
@@ -0,0 +1,174 @@
+package algorithms;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the probabilities computed by uniformization for path-based
+ * forcing, shared by all copies of a ReachabilityTracer.
+ *
+ * Lookups are lock-free. The number of entries is bounded, and entries
+ * are evicted using the CLOCK algorithm: an entry that was used since
+ * the clock hand last passed it gets a second chance.
+ */
+final class PathProbabilityCache
+{
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * Signature of a path: the uniformization rate times the time
+	 * bound, followed by the distinct (relative) exit rates on the
+	 * path in decreasing order, each with its number of visits.
+	 */
+	static final class Key
+	{
+		private double[] data = new double[16];
+		private int length;
+		private int hash;
+
+		/** Set this key from sorted (decreasing) relative rates. */
+		void set(double unifTime, double[] rates, int n)
+		{
+			int len = 1;
+			if (data.length < 2 * n + 1)
+				data = new double[2 * n + 1];
+			data[0] = unifTime;
+			for (int i = 0; i < n; ) {
+				double r = rates[i];
+				int j = i + 1;
+				while (j < n && rates[j] == r)
+					j++;
+				data[len++] = r;
+				data[len++] = j - i;
+				i = j;
+			}
+			length = len;
+			int h = 1;
+			for (int i = 0; i < len; i++) {
+				long bits = Double.doubleToLongBits(data[i]);
+				h = 31 * h + (int)(bits ^ (bits >>> 32));
+			}
+			hash = h;
+		}
+
+		private Key copy()
+		{
+			Key ret = new Key();
+			ret.data = Arrays.copyOf(data, length);
+			ret.length = length;
+			ret.hash = hash;
+			return ret;
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof Key))
+				return false;
+			Key o = (Key)other;
+			if (o.hash != hash || o.length != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (Double.doubleToLongBits(data[i])
+				    != Double.doubleToLongBits(o.data[i]))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private static final class Entry
+	{
+		final Key key;
+		final double value;
+		volatile boolean referenced;
+
+		Entry(Key key, double value)
+		{
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private final int capacity;
+	private final ConcurrentHashMap<Key, Entry> map;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	/* Guarded by this, allocated on first insertion. */
+	private Entry[] clock;
+	private int hand;
+
+	public PathProbabilityCache(int capacity)
+	{
+		this.capacity = capacity;
+		map = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Look up the probability of a path.
+	 *
+	 * @return The cached probability, or NaN if it is not cached.
+	 */
+	public double get(Key key)
+	{
+		Entry e = map.get(key);
+		if (e == null) {
+			misses.increment();
+			return Double.NaN;
+		}
+		if (!e.referenced)
+			e.referenced = true;
+		hits.increment();
+		return e.value;
+	}
+
+	/**
+	 * Store the probability of a path. The key is copied, so the
+	 * caller may reuse it.
+	 */
+	public void put(Key key, double value)
+	{
+		Entry e = new Entry(key.copy(), value);
+		synchronized(this) {
+			if (map.putIfAbsent(e.key, e) != null)
+				return;
+			if (clock == null)
+				clock = new Entry[capacity];
+			Entry old;
+			while ((old = clock[hand]) != null && old.referenced) {
+				old.referenced = false;
+				hand = (hand + 1) % capacity;
+			}
+			if (old != null)
+				map.remove(old.key);
+			clock[hand] = e;
+			hand = (hand + 1) % capacity;
+		}
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	public int size()
+	{
+		return map.size();
+	}
+
+	public String toString()
+	{
+		return String.format("Path probability cache: %d hits, %d misses, %d entries",
+		                     getHits(), getMisses(), size());
+	}
+}
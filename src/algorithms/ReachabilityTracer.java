@@ -3,10 +3,7 @@ package algorithms;
 import models.StateSpace;
 import models.StateSpace.State;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Random;
-import java.util.WeakHashMap;
 import nl.utwente.ewi.fmt.EXPRES.Property;
 
 /** Tracer to estimate the probability of hitting a red state before
@@ -14,115 +11,91 @@ import nl.utwente.ewi.fmt.EXPRES.Property;
  */
 public class ReachabilityTracer extends TraceGenerator
 {
-	private long N;
-	private long M;
-	private double sum;
-	private double sumSquares;
-	private double estMean;
+	final SampleStatistics stats = new SampleStatistics(1);
 	private final double UNIF_BOUND = 1e-10;
 
 	public ReachabilityTracer(Random rng, Scheme s, Property prop,
 	                          double forceBound)
 	{
-		super(rng, s, prop, forceBound);
+		this(rng, s, prop, forceBound,
+		     new PathProbabilityCache(PathProbabilityCache.DEFAULT_CAPACITY));
 	}
 
-	public TraceGenerator copy()
+	private ReachabilityTracer(Random rng, Scheme s, Property prop,
+	                           double forceBound,
+	                           PathProbabilityCache cache)
 	{
-		ReachabilityTracer ret;
-		ret = new ReachabilityTracer(subRNG(), scheme.clone(),
-		                             prop, forceBound);
-		ret.estMean = estMean;
-		return ret;
+		super(rng, s, prop, forceBound);
+		this.cache = cache;
 	}
 
-	public void reset()
+	public TraceGenerator copy()
 	{
-		super.reset();
-		N = M = 0;
-		sum = sumSquares = estMean = 0;
+		return new ReachabilityTracer(subRNG(), scheme.clone(),
+		                              prop, forceBound, cache);
 	}
 
-	public void resetAndEstimateMeans()
+	/** The cache of path probabilities used for path-based forcing. */
+	PathProbabilityCache getPathCache()
 	{
-		double newEstMean = 0;
-		if (N > 0)
-			newEstMean = sum / N;
-		super.resetAndEstimateMeans();
-		estMean = newEstMean;
+		return cache;
 	}
 
-	public void resetAndEstimateMeans(TraceGenerator[] ts)
+	public void reset()
 	{
-		double sum = 0;
-		long N = 0;
-		super.resetAndEstimateMeans(ts);
-		for (TraceGenerator t : ts) {
-			if (t instanceof ReachabilityTracer) {
-				sum += ((ReachabilityTracer)t).sum;
-				N += ((ReachabilityTracer)t).N;
-			}
-		}
-		estMean = sum / N;
+		super.reset();
+		stats.clear();
 	}
 
-	private static class Path {
-		private final double[] rates;
-		private final int hash;
-		public Path(double[] rates) {
-			this.rates = rates;
-			hash = Arrays.hashCode(rates);
-		}
-
-		public int hashCode() {
-			return hash;
-		}
+	/* Shared with all copies of this tracer. */
+	private final PathProbabilityCache cache;
+	private final PathProbabilityCache.Key probe = new PathProbabilityCache.Key();
 
-		public boolean equals(Object other) {
-			if (!(other instanceof Path))
-				return false;
-			Path otherPath = (Path)other;
-			if (otherPath.hash != hash)
-				return false;
-			return Arrays.equals(rates, otherPath.rates);
-		}
-	}
-	private final Map<Path, Double> cache = new WeakHashMap<>();
+	/* Reused for every trace. */
+	private final PathCounts path = new PathCounts();
+	private double[] rates = new double[64];
+	private double[] probs = new double[64];
 
-	private double computeProb(HashMap<State, int[]> path)
+	private double computeProb()
 	{
-		double tmpUnifRate = Double.NEGATIVE_INFINITY;
+		double unifRate = Double.NEGATIVE_INFINITY;
 		int totalCount = 0;
-		for (java.util.Map.Entry<State, int[]> e : path.entrySet()) {
-			double rate = e.getKey().getNeighbours().exitRate;
-			if (rate > tmpUnifRate)
-				tmpUnifRate = rate;
-			totalCount += e.getValue()[0] + 1;
+		for (int j = 0; j < path.size(); j++) {
+			double rate = path.state(j).getNeighbours().exitRate;
+			if (rate > unifRate)
+				unifRate = rate;
+			totalCount += path.visits(j);
 		}
-		final double unifRate = tmpUnifRate;
-		double rates[] = new double[totalCount + 1];
-		double probs[] = new double[totalCount + 1];
-		probs[0] = 1;
-		double undecProb = 1;
-		double reachProb = 0;
-		int k[] = new int[1];
-		path.forEach((State s, int[] c) -> {
-			int count = c[0] + 1;
-			double rate = s.getNeighbours().exitRate;
+		int n = totalCount + 1;
+		if (n > rates.length) {
+			int len = Math.max(n, rates.length * 2);
+			rates = new double[len];
+			probs = new double[len];
+		}
+		double[] rates = this.rates, probs = this.probs;
+		int k = 0;
+		for (int j = 0; j < path.size(); j++) {
+			int count = path.visits(j);
+			double rate = path.state(j).getNeighbours().exitRate;
 			rate /= unifRate;
 			while (count --> 0)
-				rates[k[0]++] = rate;
-		});
-		Arrays.sort(rates);
-		for (int i = 0; i < rates.length / 2; i++) {
+				rates[k++] = rate;
+		}
+		rates[k] = 0;
+		Arrays.sort(rates, 0, n);
+		for (int i = 0; i < n / 2; i++) {
 			double tmp = rates[i];
-			rates[i] = rates[rates.length - i - 1];
-			rates[rates.length - i - 1] = tmp;
+			rates[i] = rates[n - i - 1];
+			rates[n - i - 1] = tmp;
 		}
-		Path forCache = new Path(rates);
-		Double cached = cache.get(forCache);
-		if (cached != null)
+		probe.set(unifRate * prop.timeBound, rates, n);
+		double cached = cache.get(probe);
+		if (!Double.isNaN(cached))
 			return cached;
+		Arrays.fill(probs, 0, n, 0);
+		probs[0] = 1;
+		double undecProb = 1;
+		double reachProb = 0;
 		double prob = Math.exp(-unifRate * prop.timeBound);
 		int j = 1;
 		do {
@@ -131,7 +104,7 @@ public class ReachabilityTracer extends TraceGenerator
 			int i;
 			undecProb -= prob;
 			prob *= (unifRate * prop.timeBound) / j++;
-			for (i = 0; i < rates.length; i++) {
+			for (i = 0; i < n; i++) {
 				double tmp;
 				tmp = probs[i];
 				probs[i] = -Math.fma(probs[i], rates[i], -probs[i]);
@@ -141,7 +114,7 @@ public class ReachabilityTracer extends TraceGenerator
 			}
 			reachProb = Math.fma(probs[i - 1], prob, reachProb);
 		} while (undecProb > UNIF_BOUND);
-		cache.put(forCache, reachProb);
+		cache.put(probe, reachProb);
 		return reachProb;
 	}
 
@@ -149,23 +122,20 @@ public class ReachabilityTracer extends TraceGenerator
 	{
 		double timeLeft = prop.timeBound;
 		double likelihood = 1;
-		HashMap<State, int[]> path = null;
 		StateSpace model = scheme.model;
 		State state = model.getInitialState();
-		if (forceBound < 0 && Double.isFinite(prop.timeBound))
-			path = new HashMap<>();
+		boolean onPath = forceBound < 0 && Double.isFinite(prop.timeBound);
+		path.clear();
 
 		do {
 			state = drawNextState(state, timeLeft);
-			if (path != null) {
+			if (onPath) {
 				extendPath(path);
 				likelihood *= likelihood();
 				if (likelihood < -forceBound) {
-					double[] d = pathToTimed(path, prop.timeBound);
-					path = null;
-					timeLeft = prop.timeBound - d[0];
-					likelihood *= d[1];
-					path = null;
+					timeLeft -= pathToTimed(path, prop.timeBound);
+					likelihood *= deltaLikelihood();
+					onPath = false;
 				}
 			} else {
 				if (prop.timeBound < Double.POSITIVE_INFINITY)
@@ -177,28 +147,42 @@ public class ReachabilityTracer extends TraceGenerator
 		        && timeLeft > 0
 		        && likelihood > 0);
 
-		synchronized(this) {
-			N++;
-			if(timeLeft > 0 && prop.isRed(model, state)) {
-				M++;
-				double prob = 1;
-				if (path != null)
-					prob = computeProb(path);
-				sum = Math.fma(prob, likelihood, sum);
-				prob = Math.fma(prob, likelihood, -estMean);
-				sumSquares = Math.fma(prob, prob, sumSquares);
-			}
+		if (timeLeft > 0 && prop.isRed(model, state)) {
+			double prob = 1;
+			if (onPath)
+				prob = computeProb();
+			stats.add(prob * likelihood, true);
+		} else {
+			stats.add(0, false);
 		}
 	}
 
-	public synchronized SimulationResult getResult(double alpha)
+	public SimulationResult getResult(double alpha)
+	{
+		return getResult(stats.snapshot(), alpha);
+	}
+
+	SimulationResult getResult(SampleStatistics stats, double alpha)
 	{
-		long time = getElapsedTime();
+		return result(this, prop, stats, alpha);
+	}
+
+	/**
+	 * The result for the reachability property prop from the given
+	 * statistics, which were gathered by (copies of) gen.
+	 */
+	static SimulationResult result(TraceGenerator gen, Property prop,
+	                               SampleStatistics stats, double alpha)
+	{
+		Scheme scheme = gen.scheme;
+		double forceBound = gen.forceBound;
+		long time = gen.getElapsedTime();
+		long N = stats.getN(), M = stats.getM();
 		if (M == 0) {
 			if (scheme.isBinomial()
 			    && forceBound == Double.POSITIVE_INFINITY)
 			{
-				return binomialCI(alpha, Double.NaN, time);
+				return binomialCI(prop, scheme, alpha, Double.NaN, N, M, time);
 			} else {
 				return new SimulationResult(prop, 0, alpha,
 				                            Double.NaN,
@@ -208,13 +192,11 @@ public class ReachabilityTracer extends TraceGenerator
 							    scheme.storedStates());
 			}
 		}
-		double mean = sum / N;
-		double estSum = Math.fma(-N, estMean, sum);
-		double var = Math.fma(-estSum, estSum / N, sumSquares);
-		var /= N - 1;
+		double mean = stats.getMean(0);
+		double var = stats.getVariance(0);
 		SimulationResult ret = null;
 		if (scheme.isBinomial() && forceBound == Double.POSITIVE_INFINITY)
-			ret = binomialCI(alpha, var, time);
+			ret = binomialCI(prop, scheme, alpha, var, N, M, time);
 
 		if (ret == null)
 			ret = new SimulationResult(prop, alpha, mean, var, new long[]{N, M}, time, scheme.storedStates());
@@ -223,26 +205,17 @@ public class ReachabilityTracer extends TraceGenerator
 
 	public SimulationResult getResult(TraceGenerator[] ts, double alpha)
 	{
-		sum = 0;
-		N = M = 0;
+		SampleStatistics total = new SampleStatistics(1);
 		for (TraceGenerator t : ts) {
-			if (t instanceof ReachabilityTracer) {
-				ReachabilityTracer rt = (ReachabilityTracer)t;
-				synchronized(rt) {
-					if (estMean != rt.estMean) {
-						sum = 0;
-						sumSquares = 0;
-						N = M = 0;
-					}
-					estMean = rt.estMean;
-					sum += rt.sum;
-					sumSquares += rt.sumSquares;
-					N += rt.N;
-					M += rt.M;
-				}
-			}
+			if (t instanceof ReachabilityTracer)
+				total.merge(((ReachabilityTracer)t).stats.snapshot());
 		}
-		return getResult(alpha);
+		return getResult(total, alpha);
+	}
+
+	public SampleStatistics[] getStatistics()
+	{
+		return new SampleStatistics[] {stats};
 	}
 
 	private static long gcd(long a, long b)
@@ -280,12 +253,13 @@ public class ReachabilityTracer extends TraceGenerator
                 return numer / denom;
 	}
 
-	private synchronized SimulationResult binomialCI(double alpha,
-	                                                 double var, long time)
+	private static SimulationResult binomialCI(Property prop,
+	                                           Scheme scheme,
+	                                           double alpha, double var,
+	                                           long N, long M, long time)
 	{
 		double mean, lbound, ubound;
 		boolean inverse = false;
-		long M = this.M;
 		if (M > N / 2) {
 			M = N - M;
 			inverse = true;
@@ -350,6 +324,8 @@ public class ReachabilityTracer extends TraceGenerator
 		} else {
 			return null;
 		}
+		if (inverse)
+			M = N - M;
 		return new SimulationResult(prop, mean, alpha, var, lbound, ubound, new long[]{N, M}, time, scheme.storedStates());
 	}
 }
@@ -0,0 +1,204 @@
+package algorithms;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Running statistics of a stream of samples: the number of samples,
+ * the number of samples that hit the target, and for each column
+ * the mean and the sum of squared deviations from the mean.
+ *
+ * Means and squared deviations are updated using Welford's method
+ * (with a compensated sum for the mean), so no estimate of the mean
+ * is needed in advance and precision is kept for very large numbers
+ * of samples.
+ *
+ * Updates are not synchronized: only one thread may update an
+ * instance at a time. Other threads can take a consistent copy at
+ * any time using snapshot(), which retries if it overlaps with an
+ * update (a sequence lock).
+ */
+public class SampleStatistics
+{
+	private static final VarHandle VERSION;
+	static {
+		try {
+			VERSION = MethodHandles.lookup().findVarHandle(
+					SampleStatistics.class, "version",
+					int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/* Odd while an update is in progress. */
+	private int version;
+	private long N, M;
+	private final double[] mean, meanErr, sqDevs;
+
+	public SampleStatistics(int columns)
+	{
+		mean = new double[columns];
+		meanErr = new double[columns];
+		sqDevs = new double[columns];
+	}
+
+	private void beginUpdate()
+	{
+		VERSION.setOpaque(this, version + 1);
+		VarHandle.storeStoreFence();
+	}
+
+	private void endUpdate()
+	{
+		VERSION.setRelease(this, version + 1);
+	}
+
+	private void addTo(int col, double x, long n)
+	{
+		double d = x - mean[col];
+		double y = d / n - meanErr[col];
+		double t = mean[col] + y;
+		meanErr[col] = (t - mean[col]) - y;
+		mean[col] = t;
+		sqDevs[col] = Math.fma(d, x - t, sqDevs[col]);
+	}
+
+	/** Add a sample of a single-column statistic. */
+	public void add(double x, boolean hit)
+	{
+		beginUpdate();
+		long n = ++N;
+		if (hit)
+			M++;
+		addTo(0, x, n);
+		endUpdate();
+	}
+
+	/** Add a sample of a two-column statistic. */
+	public void add(double x, double y, boolean hit)
+	{
+		beginUpdate();
+		long n = ++N;
+		if (hit)
+			M++;
+		addTo(0, x, n);
+		addTo(1, y, n);
+		endUpdate();
+	}
+
+	public void clear()
+	{
+		beginUpdate();
+		N = M = 0;
+		for (int i = 0; i < mean.length; i++)
+			mean[i] = meanErr[i] = sqDevs[i] = 0;
+		endUpdate();
+	}
+
+	/**
+	 * Add all samples of another set of statistics (which should
+	 * not be concurrently updated, e.g. a snapshot) to this one.
+	 */
+	public void merge(SampleStatistics other)
+	{
+		if (other.N == 0)
+			return;
+		beginUpdate();
+		double n = N + other.N;
+		double nOther = other.N;
+		for (int i = 0; i < mean.length; i++) {
+			double d = other.mean[i] - mean[i];
+			double f = nOther / n;
+			mean[i] = Math.fma(d, f, mean[i]);
+			meanErr[i] = 0;
+			sqDevs[i] += other.sqDevs[i] + d * d * N * f;
+		}
+		N += other.N;
+		M += other.M;
+		endUpdate();
+	}
+
+	/**
+	 * Get a consistent copy of these statistics, even while another
+	 * thread is updating them.
+	 */
+	public SampleStatistics snapshot()
+	{
+		SampleStatistics ret = new SampleStatistics(mean.length);
+		int v;
+		do {
+			v = (int)VERSION.getAcquire(this);
+			while ((v & 1) != 0) {
+				Thread.onSpinWait();
+				v = (int)VERSION.getAcquire(this);
+			}
+			ret.N = N;
+			ret.M = M;
+			System.arraycopy(mean, 0, ret.mean, 0, mean.length);
+			System.arraycopy(sqDevs, 0, ret.sqDevs, 0, mean.length);
+			VarHandle.loadLoadFence();
+		} while ((int)VERSION.getOpaque(this) != v);
+		return ret;
+	}
+
+	/**
+	 * Encode these statistics (which should not be concurrently
+	 * updated) exactly as a single line of text.
+	 */
+	public String encode()
+	{
+		StringBuilder ret = new StringBuilder();
+		ret.append(mean.length).append(' ').append(N);
+		ret.append(' ').append(M);
+		for (int i = 0; i < mean.length; i++) {
+			ret.append(' ').append(Double.toHexString(mean[i]));
+			ret.append(' ').append(Double.toHexString(sqDevs[i]));
+		}
+		return ret.toString();
+	}
+
+	/** Decode statistics encoded by encode(). */
+	public static SampleStatistics decode(String s)
+	{
+		String[] parts = s.trim().split(" ");
+		int columns = Integer.parseInt(parts[0]);
+		if (parts.length != 3 + 2 * columns)
+			throw new IllegalArgumentException("Malformed statistics: " + s);
+		SampleStatistics ret = new SampleStatistics(columns);
+		ret.N = Long.parseLong(parts[1]);
+		ret.M = Long.parseLong(parts[2]);
+		for (int i = 0; i < columns; i++) {
+			ret.mean[i] = Double.parseDouble(parts[3 + 2 * i]);
+			ret.sqDevs[i] = Double.parseDouble(parts[4 + 2 * i]);
+		}
+		return ret;
+	}
+
+	public long getN()
+	{
+		return N;
+	}
+
+	public long getM()
+	{
+		return M;
+	}
+
+	public double getMean(int col)
+	{
+		return mean[col];
+	}
+
+	/** Unbiased estimate of the variance of a single sample. */
+	public double getVariance(int col)
+	{
+		return sqDevs[col] / (N - 1);
+	}
+
+	/** Sum of the squared deviations from the mean. */
+	public double getSquaredDeviations(int col)
+	{
+		return sqDevs[col];
+	}
+}
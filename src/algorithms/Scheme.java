@@ -13,6 +13,9 @@ public class Scheme
 	public StateSpace model;
 
 	public double[] stateWeightsIS;
+	/** Neighbours.cumulative(stateWeightsIS), or null if the
+	 * weights need to be scanned. */
+	public double[] cumWeightsIS;
 	public double totalStateWeightIS;
 	public StateSpace.State[] neighbours;
 	public double exitRate;
@@ -44,6 +47,7 @@ public class Scheme
 		probs = n.probs;
 
 		stateWeightsIS = probs;
+		cumWeightsIS = n.cumProbs;
 		if (getClass() == Scheme.class) {
 			/* There is no other scheme modifying the
 			 * probabilities
@@ -15,6 +15,13 @@ public class SearchAlgorithm {
 	private final StateSpace model;
 	private final Property prop;
 	private static final boolean VERBOSE = false;
+	/** Build phase-type representations of the HPC exit times. */
+	public static boolean phaseTypeHPCs = false;
+	/* Bounds on the size of the phase-type representation of one
+	 * HPC (in stored probabilities), and the mass left in the HPC
+	 * at which it is considered complete. */
+	private static final int MAX_PHASE_ENTRIES = 1 << 22;
+	private static final double PHASE_THRESHOLD = 1e-12;
 	private static final Double zero = 0.0;
 
 	private HashMap<State, Integer> dp;
@@ -206,36 +213,14 @@ public class SearchAlgorithm {
 		 * are sufficiently low.
 		 */
 
+		StateSpace.HPCExitTimes[] exitTimes = null;
+		if (phaseTypeHPCs)
+			exitTimes = exitTimes(L, T);
+		double[][] meanTimes = meanTimes(L, T);
+
 		int MAX_ITS = Integer.MAX_VALUE;
 		solveEventualProbabilities(MAX_ITS, T);
 
-		double[][] meanTimes = null;
-		if (L.length == 2) {
-			/* For 2 we can solve exactly (probably also for
-			 * slightly larger ones but I can't be bothered
-			 * to implement them.
-			 */
-			meanTimes = new double[2][D.length];
-			Neighbours nb0 = L[0].getNeighbours();
-			Neighbours nb1 = L[1].getNeighbours();
-			for (i = 0; i < D.length; i++) {
-				double v;
-				double m0 = 1 / nb0.exitRate;
-				double m1 = 1 / nb1.exitRate;
-				double P01 = L[0].getProbTo(L[1]);
-				double P10 = L[1].getProbTo(L[0]);
-				double P0sink = T[0][L.length + i];
-				double P1sink = T[1][L.length + i];
-				v = m0 + P01 * P1sink * m1 / P0sink;
-				v /= (1 - P01 * P10);
-				meanTimes[0][i] = v;
-
-				v = m1 + P10 * P0sink * m0 / P1sink;
-				v /= (1 - P10 * P01);
-				meanTimes[1][i] = v;
-			}
-		}
-		
 		// We then reroute the transitions within the states in L
 		
 		int minOrder = Integer.MAX_VALUE;
@@ -255,7 +240,10 @@ public class SearchAlgorithm {
 				mt = meanTimes[i];
 			for(int j=0;j<D.length;j++)
 				prbs[j] = T[i][L.length + j];
-			State h = model.addHPC(l, D, orders, prbs, mt);
+			StateSpace.HPCExitTimes et = null;
+			if (exitTimes != null)
+				et = exitTimes[i];
+			State h = model.addHPC(l, D, orders, prbs, mt, et);
 			for (State nb : l.getNeighbours().neighbours) {
 				ArrayList<State> preds = predecessors.get(nb);
 				int idx = preds.indexOf(l);
@@ -268,6 +256,152 @@ public class SearchAlgorithm {
 		return true;
 	}
 
+	/**
+	 * Compute the expected times until leaving the HPC from each of
+	 * its states, conditional on the sink through which it is left.
+	 *
+	 * With P and R the internal and leaving parts of the transition
+	 * matrix T of the embedded chain (as described in removeHpc),
+	 * the probabilities of leaving to each sink are H = (I - P)^-1 R,
+	 * and the expected times until leaving restricted to each sink
+	 * are V = (I - P)^-1 M H, with M the diagonal matrix of mean
+	 * sojourn times. The conditional mean times are then V / H.
+	 *
+	 * @return The mean times by state and sink, or null if the
+	 * system could not be solved.
+	 */
+	private double[][] meanTimes(State[] L, double[][] T)
+	{
+		int nL = L.length, nD = T[0].length - nL;
+		if (nD == 0)
+			return null;
+		double[][] R = new double[nL][];
+		for (int i = 0; i < nL; i++)
+			R[i] = Arrays.copyOfRange(T[i], nL, nL + nD);
+		AbsorptionSolver solver = new AbsorptionSolver(T, nL);
+		double[][] H = solver.solve(R);
+		if (H == null)
+			return null;
+		double[][] MH = new double[nL][nD];
+		for (int i = 0; i < nL; i++) {
+			double m = 1 / L[i].getNeighbours().exitRate;
+			for (int d = 0; d < nD; d++)
+				MH[i][d] = m * H[i][d];
+		}
+		double[][] V = solver.solve(MH);
+		if (V == null)
+			return null;
+		for (int i = 0; i < nL; i++) {
+			for (int d = 0; d < nD; d++) {
+				if (H[i][d] > 0)
+					V[i][d] /= H[i][d];
+				else
+					V[i][d] = 0;
+			}
+		}
+		return V;
+	}
+
+	/**
+	 * Compute the phase-type representations of the exit times of
+	 * the states of an HPC, given the transition matrix T of the
+	 * embedded chain as described in removeHpc.
+	 *
+	 * The HPC is uniformized with its maximal exit rate, and we
+	 * iterate B_{k+1} = U B_k, where U is the uniformized internal
+	 * matrix and B_k(i, d) is the probability of leaving from i to d
+	 * at exactly the k-th jump.
+	 *
+	 * @return The representations by state, or null if they would
+	 * be too large.
+	 */
+	private StateSpace.HPCExitTimes[] exitTimes(State[] L, double[][] T)
+	{
+		int nL = L.length, nD = T[0].length - nL;
+		if (nD == 0)
+			return null;
+		double[] exitRates = new double[nL];
+		double unifRate = 0;
+		for (int i = 0; i < nL; i++) {
+			exitRates[i] = L[i].getNeighbours().exitRate;
+			unifRate = Math.max(unifRate, exitRates[i]);
+		}
+		/* Sparse rows of the uniformized internal matrix. */
+		int[][] cols = new int[nL][];
+		double[][] vals = new double[nL][];
+		double[][] B = new double[nL][nD];
+		for (int i = 0; i < nL; i++) {
+			double f = exitRates[i] / unifRate;
+			int n = 0;
+			for (int j = 0; j < nL; j++) {
+				if (T[i][j] != 0 || i == j)
+					n++;
+			}
+			cols[i] = new int[n];
+			vals[i] = new double[n];
+			n = 0;
+			for (int j = 0; j < nL; j++) {
+				if (T[i][j] == 0 && i != j)
+					continue;
+				cols[i][n] = j;
+				vals[i][n] = f * T[i][j] + (i == j ? 1 - f : 0);
+				n++;
+			}
+			for (int d = 0; d < nD; d++)
+				B[i][d] = f * T[i][nL + d];
+		}
+
+		double[][][] cum = new double[nL][nD][16];
+		int[][] lens = new int[nL][nD];
+		double[] exited = new double[nL];
+		double[][] next = new double[nL][nD];
+		int k = 0;
+		while (true) {
+			if ((long)(k + 1) * nL * nD > MAX_PHASE_ENTRIES) {
+				if (Simulator.showProgress)
+					System.err.format("\rHPC of size %d too large for phase-type exit times.\n", nL);
+				return null;
+			}
+			double maxRem = 0;
+			for (int i = 0; i < nL; i++) {
+				double[][] ci = cum[i];
+				for (int d = 0; d < nD; d++) {
+					if (ci[d].length == k)
+						ci[d] = Arrays.copyOf(ci[d], 2 * k);
+					double prev = k > 0 ? ci[d][k - 1] : 0;
+					ci[d][k] = prev + B[i][d];
+					exited[i] += B[i][d];
+					if (B[i][d] > 0)
+						lens[i][d] = k + 1;
+				}
+				maxRem = Math.max(maxRem, 1 - exited[i]);
+			}
+			k++;
+			if (maxRem < PHASE_THRESHOLD)
+				break;
+			for (int i = 0; i < nL; i++) {
+				double[] row = next[i];
+				Arrays.fill(row, 0);
+				for (int n = 0; n < cols[i].length; n++) {
+					double v = vals[i][n];
+					double[] Bj = B[cols[i][n]];
+					for (int d = 0; d < nD; d++)
+						row[d] = Math.fma(v, Bj[d], row[d]);
+				}
+			}
+			double[][] t = B; B = next; next = t;
+		}
+
+		StateSpace.HPCExitTimes[] ret = new StateSpace.HPCExitTimes[nL];
+		for (int i = 0; i < nL; i++) {
+			double[][] c = new double[nD][];
+			for (int d = 0; d < nD; d++)
+				c[d] = Arrays.copyOf(cum[i][d], lens[i][d]);
+			ret[i] = new StateSpace.HPCExitTimes(unifRate, c);
+		}
+		return ret;
+	}
+
 	private double[][] solveEventualProbabilities(int maxIts, double[][] T)
 	{
 		ReachabilitySolver solv = new ReachabilitySolver(T);
@@ -1,10 +1,33 @@
 package algorithms;
 
 import models.StateSpace;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.SortedMap;
 import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
 import nl.utwente.ewi.fmt.EXPRES.Property;
 
@@ -12,14 +35,53 @@ public class Simulator {
 	private final static long MIN_FREE_MEM = 512*1024L*1024L;
 	public final static boolean VERBOSE = false;
 	public final static int REL_ERR_RATE = 8;
+	/* Parameters of the dynamic distribution of samples over threads. */
+	private final static int CHUNKS_PER_THREAD = 8;
+	private final static long MIN_CHUNK = 16;
+	/* Maximal time between checkpoints, in nanoseconds. */
+	private final static long CHECKPOINT_INTERVAL = 60 * 1000000000L;
+	private final static String CHECKPOINT_MAGIC = "DFTRES checkpoint 3";
+	/* Samples per random stream in reproducible mode. */
+	private final static long STREAM_CHUNK = 4096;
+	/* Used instead of the number of cores to size the rounds of
+	 * relative-error simulations in reproducible mode. */
+	private final static int REPRODUCIBLE_ROUND_SCALE = 8;
 	public static int coresToUse;
 	public static boolean showProgress = false;
+	/** Pool all samples in relative-error simulations. */
+	public static boolean sequentialRelErr = false;
+	/**
+	 * Tie the random numbers to the index of each sample instead of
+	 * the thread simulating it, so the results for a given seed do
+	 * not depend on the number of threads or worker processes.
+	 */
+	public static boolean reproducible = false;
 	private final StateSpace initialModel;
 	private final TraceGenerator gen;
 	private static final Runtime r = Runtime.getRuntime();
 
 	private TraceGenerator[] currentGenerators;
-	private SimulationResult lastResult;
+	private TraceGenerator[] workerGens;
+	private ExecutorService workers;
+	private ScheduledExecutorService reporter;
+	/* Generator holding the running statistics to report in
+	 * reproducible mode. */
+	private TraceGenerator estimateGen;
+	private SimulationResult[] lastResults;
+	private File checkpointFile;
+	private String checkpointFingerprint;
+	private boolean resume;
+
+	/* Reproducible mode: the seed from which the stream of each
+	 * chunk is derived, the index of the next sample, the pooled
+	 * statistics of all rounds since the last restart, and the
+	 * statistics of each chunk of the last round, and whether those
+	 * have not been pooled yet. */
+	private long streamSeed;
+	private long sampleBase;
+	private SampleStatistics[] pooled;
+	private SortedMap<Long, SampleStatistics[]> lastChunks;
+	private boolean pooling;
 	
 	static {
 		coresToUse = Runtime.getRuntime().availableProcessors();
@@ -35,21 +97,29 @@ public class Simulator {
 		return r.freeMemory();
 	}
 
-	private static class ProgressPrinter extends Thread {
+	private static class ProgressPrinter {
 		private final long maxN;
+		private final long timeLimit;
 		private final LongAdder done;
 		private final long initialTime;
 
-		public ProgressPrinter(long N) {
+		public ProgressPrinter(long N, long timeLimit) {
 			maxN = N;
+			this.timeLimit = timeLimit;
 			done = new LongAdder();
-			initialTime = System.currentTimeMillis();
+			initialTime = System.nanoTime();
 		}
-		private boolean printLine() {
+		public void printLine() {
 			long d = done.sum();
-			if (d == 0)
-				return false;
-			int perc = (int)((d * 50) / maxN);
+			long elapsed = System.nanoTime() - initialTime;
+			double frac = d / (double)maxN;
+			if (timeLimit > 0 && elapsed / (double)timeLimit > frac)
+				frac = elapsed / (double)timeLimit;
+			if (frac == 0)
+				return;
+			if (frac > 1)
+				frac = 1;
+			int perc = (int)(frac * 50);
 			System.err.print("\r");
 			for (int i = 0; i < perc; i++) {
 				if (i % 5 == 0)
@@ -57,117 +127,414 @@ public class Simulator {
 				else
 					System.err.print(".");
 			}
-			long now = System.currentTimeMillis();
-			long elapsed = now - initialTime;
-			int secsLeft = (int)(elapsed * (maxN / (double)d - 1));
-			secsLeft /= 1000;
+			int secsLeft = (int)(elapsed * (1 / frac - 1) / 1e9);
 			int minsLeft = secsLeft / 60;
 			secsLeft -= minsLeft * 60;
 			int hoursLeft = minsLeft / 60;
 			minsLeft -= hoursLeft * 60;
 			long mem = getMemUsed();
-			if (d != maxN) {
-				System.err.format (" (est. %d:%02d:%02d remaining, used %d MB)", hoursLeft, minsLeft, secsLeft, mem / 1048576);
-				return false;
-			} else {
-				System.err.println("Done                     ");
-				return true;
+			System.err.format (" (est. %d:%02d:%02d remaining, used %d MB)", hoursLeft, minsLeft, secsLeft, mem / 1048576);
+		}
+		public void printDone() {
+			System.err.print("\r");
+			for (int i = 0; i < 50; i++) {
+				if (i % 5 == 0)
+					System.err.print(i * 2 + "%");
+				else
+					System.err.print(".");
 			}
+			System.err.println("Done                     ");
 		}
 		public void doneOne() {
 			done.increment();
 		}
-		public void run() {
-			while (!printLine()) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-				}
-			}
-		}
 	}
 
 	public Simulator(Random rng, Property prop, Scheme scheme, double forcingBound)
+	{
+		this(createGenerator(rng, prop, scheme, forcingBound));
+	}
+
+	/**
+	 * Create a simulator using the given trace generator, e.g. one
+	 * estimating multiple properties at once.
+	 */
+	public Simulator(TraceGenerator gen)
+	{
+		this.gen = gen;
+		initialModel = gen.scheme.model;
+		/* Before copies of the generator advance its stream. */
+		if (reproducible)
+			streamSeed = gen.drawSeed();
+	}
+
+	private static TraceGenerator createGenerator(Random rng,
+	                                              Property prop,
+	                                              Scheme scheme,
+	                                              double forcingBound)
 	{
 		switch (prop.type) {
 			case REACHABILITY:
-				gen = new ReachabilityTracer(rng, scheme, prop,
-				                             forcingBound);
-				break;
+				return new ReachabilityTracer(rng, scheme, prop,
+				                              forcingBound);
 			case STEADY_STATE:
-				gen = new SteadyStateTracer(rng, scheme, prop);
-				break;
+				return new SteadyStateTracer(rng, scheme, prop);
 			case EXPECTED_VALUE:
-				gen = new ExpectedValueTracer(rng, scheme, prop,
-				                              forcingBound);
-				break;
+				return new ExpectedValueTracer(rng, scheme, prop,
+				                               forcingBound);
 			default:
-				gen = null;
-				assert(false);
+				throw new IllegalArgumentException("Unknown property type: " + prop.type);
 		}
-		initialModel = gen.scheme.model;
+	}
+
+	/**
+	 * Claim a chunk of the remaining samples for one thread.
+	 *
+	 * Chunks shrink as the number of remaining samples decreases
+	 * (guided scheduling), so a thread that gets stuck on a few
+	 * long traces near the end only holds on to a small number of
+	 * samples while the other threads take the rest.
+	 *
+	 * @return The number of samples claimed, 0 if none are left.
+	 */
+	private static long claimSamples(AtomicLong nLeft, int threads)
+	{
+		long left, n;
+		do {
+			left = nLeft.get();
+			if (left <= 0)
+				return 0;
+			n = left / (threads * CHUNKS_PER_THREAD);
+			if (n < MIN_CHUNK)
+				n = MIN_CHUNK;
+			if (n > left)
+				n = left;
+		} while (!nLeft.compareAndSet(left, left - n));
+		return n;
+	}
+
+	/** Seed of the random stream starting at the given sample. */
+	private static long chunkSeed(long seed, long sample)
+	{
+		long z = seed + sample * 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static SampleStatistics[] snapshot(TraceGenerator t)
+	{
+		SampleStatistics[] ret = t.getStatistics().clone();
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = ret[i].snapshot();
+		return ret;
+	}
+
+	/**
+	 * Start pooling from the current statistics of the generators
+	 * (e.g., restored from a checkpoint).
+	 */
+	private void startPooling(TraceGenerator[] ts)
+	{
+		pooled = snapshot(ts[0]);
+		for (int j = 1; j < ts.length; j++) {
+			SampleStatistics[] s = snapshot(ts[j]);
+			for (int i = 0; i < pooled.length; i++)
+				pooled[i].merge(s[i]);
+		}
+	}
+
+	/**
+	 * Add the statistics of the chunks of the last round to the
+	 * pooled statistics, in the order of the chunks, and leave the
+	 * result in the first generator.
+	 */
+	private synchronized void poolChunks(TraceGenerator[] ts)
+	{
+		for (SampleStatistics[] c : lastChunks.values()) {
+			for (int i = 0; i < pooled.length; i++)
+				pooled[i].merge(c[i]);
+		}
+		for (TraceGenerator t : ts)
+			t.reset();
+		SampleStatistics[] first = ts[0].getStatistics();
+		for (int i = 0; i < pooled.length; i++)
+			first[i].merge(pooled[i]);
+		pooling = false;
+		currentGenerators = ts;
+	}
+
+	/** Number of cores, or a fixed number in reproducible mode. */
+	private static int roundScale()
+	{
+		return reproducible ? REPRODUCIBLE_ROUND_SCALE : coresToUse;
+	}
+
+	/**
+	 * Get the generators of the worker threads, prepared for a new
+	 * round of simulations.
+	 *
+	 * The generators (and the threads running them) are created on
+	 * first use and kept for the lifetime of this simulator, so
+	 * later rounds start with warm caches and scratch arrays.
+	 * Unless restart is false, the statistics of earlier rounds are
+	 * cleared.
+	 */
+	private TraceGenerator[] getWorkerGenerators(int threads,
+	                                             boolean restart)
+	{
+		if (workerGens == null || workerGens.length != threads) {
+			stopWorkers();
+			workerGens = new TraceGenerator[threads];
+			for (int i = 0; i < threads; i++)
+				workerGens[i] = gen.copy();
+			if (threads > 1) {
+				workers = Executors.newFixedThreadPool(threads,
+						(Runnable r) -> {
+					Thread t = new Thread(r, "Simulation worker");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+		} else if (restart) {
+			for (TraceGenerator g : workerGens)
+				g.restartFrom(gen);
+		}
+		return workerGens;
+	}
+
+	private void stopWorkers()
+	{
+		if (workers != null)
+			workers.shutdown();
+		workers = null;
+	}
+
+	/** Stop the worker threads and reporting of this simulator. */
+	public void shutdown()
+	{
+		stopWorkers();
+		if (reporter != null)
+			reporter.shutdownNow();
+		reporter = null;
+	}
+
+	/**
+	 * Periodically write the current estimates of the simulations
+	 * to out, as one JSON object per line and property, until
+	 * shutdown() is called.
+	 *
+	 * @param interval The time between reports, in milliseconds.
+	 * @param alpha The confidence level of the reported intervals.
+	 */
+	public void reportEstimates(PrintStream out, long interval,
+	                            double alpha)
+	{
+		final long start = System.nanoTime();
+		final long[] last = new long[] {start, 0};
+		if (reporter != null)
+			reporter.shutdownNow();
+		synchronized(this) {
+			if (estimateGen == null)
+				estimateGen = gen.copy();
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(
+				(Runnable r) -> {
+			Thread t = new Thread(r, "Estimate reporter");
+			t.setDaemon(true);
+			return t;
+		});
+		reporter.scheduleAtFixedRate(() -> {
+			SimulationResult[] rs;
+			try {
+				rs = getCurrentEstimates(alpha);
+			} catch (RuntimeException e) {
+				/* E.g., no samples yet */
+				return;
+			}
+			if (rs == null)
+				return;
+			long now = System.nanoTime();
+			double rate = (rs[0].N - last[1]) / ((now - last[0]) / 1e9);
+			if (rs[0].N < last[1])
+				rate = rs[0].N / ((now - start) / 1e9);
+			last[0] = now;
+			last[1] = rs[0].N;
+			long states = gen.scheme.model.size();
+			for (SimulationResult res : rs) {
+				out.println("{\"time\": " + jsonNumber((now - start) / 1e9)
+					+ ", \"property\": \"" + jsonEscape(res.property.name)
+					+ "\", \"N\": " + res.N
+					+ ", \"M\": " + res.M
+					+ ", \"mean\": " + jsonNumber(res.mean)
+					+ ", \"lower\": " + jsonNumber(res.lbound)
+					+ ", \"upper\": " + jsonNumber(res.ubound)
+					+ ", \"traces_per_second\": " + jsonNumber(rate)
+					+ ", \"states\": " + states
+					+ ", \"heap_bytes\": " + getMemUsed() + "}");
+			}
+			out.flush();
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	private static String jsonNumber(double x)
+	{
+		if (Double.isFinite(x))
+			return Double.toString(x);
+		return "null";
+	}
+
+	private static String jsonEscape(String s)
+	{
+		StringBuilder ret = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				ret.append('\\').append(c);
+			else if (c < 0x20)
+				ret.append(String.format("\\u%04x", (int)c));
+			else
+				ret.append(c);
+		}
+		return ret.toString();
 	}
 
 	private TraceGenerator[] multiCoreSim(long maxN, int threads)
 	{
-		TraceGenerator[] ret = new TraceGenerator[threads];
-		for (int i = 0; i < threads; i++)
-			ret[i] = gen.copy();
+		return multiCoreSim(maxN, threads, true, 0);
+	}
+
+	/**
+	 * Run maxN simulations over the worker threads, or fewer if
+	 * timeLimit (in nanoseconds) is positive and that much time has
+	 * elapsed: in that case each worker stops before starting its
+	 * first trace after the deadline.
+	 */
+	private TraceGenerator[] multiCoreSim(long maxN, int threads,
+	                                      boolean restart,
+	                                      long timeLimit)
+	{
+		TraceGenerator[] ret = getWorkerGenerators(threads, restart);
+		/* In reproducible mode the statistics of the generators
+		 * only cover the current chunk, so the finished chunks are
+		 * reported instead. */
 		synchronized(this) {
-			currentGenerators = ret;
+			currentGenerators = reproducible ? null : ret;
+			if (reproducible) {
+				if (restart || pooled == null)
+					startPooling(ret);
+				lastChunks = new ConcurrentSkipListMap<>();
+				pooling = true;
+			}
 		}
-		if (maxN == 0)
+		if (maxN == 0) {
+			if (reproducible)
+				poolChunks(ret);
 			return ret;
+		}
 		ProgressPrinter p;
 		if (showProgress) {
-			p = new ProgressPrinter(maxN);
+			p = new ProgressPrinter(maxN, timeLimit);
 		} else {
-			p = new ProgressPrinter(Long.MAX_VALUE) {
+			p = new ProgressPrinter(Long.MAX_VALUE, 0) {
 				public void doneOne() { }
-				public void run() { }
+				public void printLine() { }
+				public void printDone() { }
 			};
 		}
 		final ProgressPrinter progress = p;
+		final long deadline = System.nanoTime() + timeLimit;
 
+		final AtomicLong nLeft = new AtomicLong(maxN);
+		final AtomicLong nextChunk = new AtomicLong(0);
+		final long base = sampleBase;
+		final SortedMap<Long, SampleStatistics[]> chunks = lastChunks;
+		final CountDownLatch finished = new CountDownLatch(threads);
 		class Tracer implements Runnable {
 			public final TraceGenerator gen;
-			public final long N;
-			public Tracer(TraceGenerator g, long nSims) {
+			public Tracer(TraceGenerator g) {
 				gen = g;
-				N = nSims;
 			}
+
+			/* Run whole chunks, each from its own stream. A
+			 * claimed chunk is always completed, so the
+			 * chunks run are a prefix of the round. */
+			private void runChunks() {
+				while (timeLimit <= 0
+				       || System.nanoTime() - deadline < 0)
+				{
+					long start = nextChunk.getAndIncrement();
+					start *= STREAM_CHUNK;
+					if (start >= maxN || start < 0)
+						return;
+					long n = Math.min(STREAM_CHUNK, maxN - start);
+					gen.reset();
+					gen.reseedRNG(chunkSeed(streamSeed,
+					                        base + start));
+					for (long i = 0; i < n; i++) {
+						gen.sample();
+						progress.doneOne();
+					}
+					chunks.put(start, snapshot(gen));
+				}
+			}
+
 			public void run() {
-				for (long i = 0; i < N; i++) {
-					gen.sample();
-					p.doneOne();
+				long n;
+				try {
+					if (reproducible) {
+						runChunks();
+						return;
+					}
+					while ((n = claimSamples(nLeft, threads)) > 0) {
+						for (long i = 0; i < n; i++) {
+							if (timeLimit > 0
+							    && System.nanoTime() - deadline >= 0)
+								return;
+							gen.sample();
+							progress.doneOne();
+						}
+					}
+				} finally {
+					finished.countDown();
 				}
 			}
 		}
 
 		if (threads > 1) {
-			Thread[] ts = new Thread[threads];
-			long nLeft = maxN;
-			for (int i = 0; i < threads; i++) {
-				long ourN = nLeft / (threads - i);
-				nLeft -= ourN;
-				ts[i] = new Thread(new Tracer(ret[i], ourN));
-				ts[i].start();
+			Future<?>[] fs = new Future<?>[threads];
+			for (int i = 0; i < threads; i++)
+				fs[i] = workers.submit(new Tracer(ret[i]));
+			boolean done = false;
+			while (!done) {
+				try {
+					done = finished.await(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+				if (!done)
+					progress.printLine();
 			}
-			p.start();
 			for (int i = 0; i < threads; i++) {
 				try {
-					ts[i].join();
+					fs[i].get();
 				} catch (InterruptedException e) {
 					i--;
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException)
+						throw (RuntimeException)e.getCause();
+					throw new RuntimeException(e.getCause());
 				}
 			}
-			p.interrupt();
-			try {
-				p.join();
-			} catch (InterruptedException e) {
-			}
 		} else {
-			new Tracer(ret[0], maxN).run();
+			new Tracer(ret[0]).run();
+		}
+		progress.printDone();
+		if (reproducible) {
+			long done = 0;
+			if (!chunks.isEmpty())
+				done = chunks.lastKey() + STREAM_CHUNK;
+			sampleBase += Math.min(done, maxN);
+			poolChunks(ret);
 		}
 		return ret;
 	}
@@ -176,90 +543,239 @@ public class Simulator {
 	 * Get the current best estimate even if simulations are still
 	 * running.
 	 */
+	private synchronized SimulationResult[] getCurrentEstimates(double alpha)
+	{
+		if (currentGenerators != null)
+			return gen.getResults(currentGenerators, alpha);
+		if (pooling && estimateGen != null) {
+			/* The pooled statistics of the earlier rounds and
+			 * the finished chunks of this one. */
+			SampleStatistics[] total = pooled.clone();
+			for (int i = 0; i < total.length; i++)
+				total[i] = total[i].snapshot();
+			for (SampleStatistics[] c : lastChunks.values()) {
+				for (int i = 0; i < total.length; i++)
+					total[i].merge(c[i]);
+			}
+			setStatistics(estimateGen, total);
+			return gen.getResults(new TraceGenerator[] {estimateGen},
+			                      alpha);
+		}
+		return lastResults;
+	}
+
 	public synchronized SimulationResult getCurrentEstimate(double alpha)
 	{
 		if (currentGenerators != null)
 			return gen.getResult(currentGenerators, alpha);
-		return lastResult;
+		if (lastResults != null)
+			return lastResults[0];
+		return null;
 	}
 
 	/**
 	 * Compute a (1-alpha) confidence interval for the value of the
-	 * property, not exceeding maxN simulations (for the actual
-	 * estimation, more samples may be taken for time estimation),
-	 * and taking at most approximately msec milliseconds.
+	 * property, not exceeding maxN simulations, and taking at most
+	 * approximately msec milliseconds.
+	 *
+	 * With a time limit, all workers simulate until a common
+	 * deadline. Each worker has run an exact prefix of its own
+	 * random stream, the lengths of which are shown with the
+	 * progress output.
 	 */
 	public SimulationResult sim(int msec, long maxN, double alpha)
 	{
-		long start = System.currentTimeMillis();
+		return simAll(msec, maxN, alpha)[0];
+	}
 
+	/**
+	 * As sim(), but returns the results of all properties estimated
+	 * by the trace generator.
+	 */
+	public SimulationResult[] simAll(int msec, long maxN, double alpha)
+	{
 		if (maxN == 0)
 			maxN = Long.MAX_VALUE;
-		/* For time bounds, start by estimating the number of
-		 * simulations we can run.
-		 */
-		if (msec > 0) {
-			long N = 0;
-
-			/* Do our stuff in a separate TG so that later
-			 * calls explicitly specifying the same number
-			 * of runs will produce the same result.
-			 */
-			TraceGenerator tg = gen.copy();
-			tg.reseedRNG(System.nanoTime());
-			/* Spend 1% of time to estimate number of runs. */
-			long trialSimTime = start + msec / 100;
-			while (System.currentTimeMillis() < trialSimTime) {
-				tg.sample();
-				N++;
-			}
-
-			if (showProgress)
-				System.err.println("Estimating simulation rate.");
-			/* Spend about another 1% estimating the time
-			 * after caching and without constant time
-			 * measurements. */
-			N *= coresToUse;
-			long startExact = System.nanoTime();
-			TraceGenerator[] gens = multiCoreSim(N, coresToUse);
-			gens = Arrays.copyOf(gens, gens.length + 1);
-			gens[gens.length - 1] = tg;
-			long exactTime = System.nanoTime() - startExact;
-			gen.resetAndEstimateMeans(gens);
-			msec -= (System.currentTimeMillis() - start);
-			N = (long)((msec * (1000000.0 * N)) / exactTime);
-			if (N < maxN)
-				maxN = N;
-		} else {
-			/* Adjust the RNG to match the one that would
-			 * have been produced by the timed version of
-			 * the call.
-			 */
-			gen.copy();
-			multiCoreSim(0, coresToUse);
-			/* Note: This is not entirely deterministic, as
-			 * we do not yet have an estimate of the mean to
-			 * reduce the rounding error in the variance.
-			 * Thus, our point estimate will be identical,
-			 * but our confidence interval will not.
-			 */
-		}
-		if (showProgress)
+		if (showProgress && msec == 0)
 			System.err.format("\nWill run %d simulations.\n", maxN);
+		else if (showProgress)
+			System.err.format("\nWill run for %d seconds.\n", msec / 1000);
 
-		TraceGenerator ts[] = multiCoreSim(maxN, coresToUse);
+		TraceGenerator ts[] = multiCoreSim(maxN, coresToUse, true,
+		                                   msec * 1000000L);
+		/* Always reported for time-limited runs, as the number of
+		 * samples is not known in advance. */
+		if (msec > 0) {
+			long[] counts = new long[ts.length];
+			for (int i = 0; i < ts.length; i++)
+				counts[i] = ts[i].getResult(alpha).N;
+			System.err.println("Simulations per worker: "
+			                   + Arrays.toString(counts));
+		}
 		if (showProgress)
 			System.err.println();
 		if (VERBOSE)
 			System.err.println("End size: "+gen.scheme.model.size());
-		SimulationResult ret = gen.getResult(ts, alpha);
+		SimulationResult[] ret = gen.getResults(ts, alpha);
 		synchronized(this) {
-			lastResult = ret;
+			lastResults = ret;
 			currentGenerators = null;
 		}
 		return ret;
 	}
 
+	/**
+	 * As simAll(), but let the given worker processes perform the
+	 * simulations and combine their statistics.
+	 */
+	public SimulationResult[] simWorkers(WorkerProcesses w, int msec,
+	                                     long maxN, double alpha)
+			throws IOException
+	{
+		if (showProgress && msec == 0)
+			System.err.format("\nWill run %d simulations on %d workers.\n", maxN, w.size());
+		else if (showProgress)
+			System.err.format("\nWill run for %d seconds on %d workers.\n", msec / 1000, w.size());
+		TraceGenerator[] ts = new TraceGenerator[w.size()];
+		for (int i = 0; i < ts.length; i++)
+			ts[i] = gen.copy();
+		long[] counts = new long[ts.length];
+		if (reproducible) {
+			/* Give each worker a range of whole chunks, and pool
+			 * the chunks in order as multiCoreSim() would. */
+			int n = ts.length;
+			long[] quotas = new long[n], bases = new long[n];
+			long chunks = (maxN + STREAM_CHUNK - 1) / STREAM_CHUNK;
+			for (int i = 0; i < n; i++) {
+				if (maxN == 0) {
+					bases[i] = sampleBase + ((long)i << 48);
+					continue;
+				}
+				long from = Math.min(chunks * i / n * STREAM_CHUNK, maxN);
+				long to = Math.min(chunks * (i + 1) / n * STREAM_CHUNK, maxN);
+				quotas[i] = to - from;
+				bases[i] = sampleBase + from;
+			}
+			String[] stats = w.run(quotas, bases, msec, maxN > 0);
+			sampleBase += maxN > 0 ? maxN : (long)n << 48;
+			SampleStatistics[] total = snapshot(ts[0]);
+			for (int j = 0; j < stats.length; j++) {
+				for (String c : stats[j].split("\\|")) {
+					if (c.isEmpty())
+						continue;
+					SampleStatistics[] cs = decodeStatistics(c);
+					for (int i = 0; i < total.length; i++)
+						total[i].merge(cs[i]);
+					counts[j] += cs[0].getN();
+				}
+			}
+			setStatistics(ts[0], total);
+		} else {
+			String[] stats = w.run(maxN, msec);
+			for (int i = 0; i < stats.length; i++) {
+				setStatistics(ts[i], decodeStatistics(stats[i]));
+				counts[i] = ts[i].getStatistics()[0].getN();
+			}
+		}
+		if (msec > 0 || showProgress) {
+			System.err.println("Simulations per worker: "
+			                   + Arrays.toString(counts));
+		}
+		SimulationResult[] ret = gen.getResults(ts, alpha);
+		synchronized(this) {
+			lastResults = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Perform simulations on behalf of a coordinator (see
+	 * WorkerProcesses), until it moves on to the next property or
+	 * closes the input.
+	 */
+	public void serve(BufferedReader in, PrintStream out)
+			throws IOException
+	{
+		String line;
+		while ((line = in.readLine()) != null) {
+			String[] cmd = line.split(" ");
+			if (cmd[0].equals("next"))
+				return;
+			if (!cmd[0].equals("run")
+			    || (cmd.length != 3 && cmd.length != 4))
+				throw new IOException("Unknown command: " + line);
+			long maxN = Long.parseLong(cmd[1]);
+			int msec = Integer.parseInt(cmd[2]);
+			if (cmd.length == 4)
+				sampleBase = Long.parseLong(cmd[3]);
+			if (maxN == 0)
+				maxN = Long.MAX_VALUE;
+			else if (maxN < 0)
+				maxN = 0;
+			TraceGenerator[] ts = multiCoreSim(maxN, coresToUse,
+			                                   true,
+			                                   msec * 1000000L);
+			synchronized(this) {
+				currentGenerators = null;
+			}
+			if (reproducible) {
+				StringBuilder chunks = new StringBuilder();
+				for (SampleStatistics[] c : lastChunks.values()) {
+					if (chunks.length() > 0)
+						chunks.append('|');
+					chunks.append(encodeStatistics(c));
+				}
+				out.println(chunks);
+			} else {
+				out.println(encodeStatistics(ts));
+			}
+			out.flush();
+		}
+	}
+
+	private static String encodeStatistics(TraceGenerator[] ts)
+	{
+		SampleStatistics[] total = ts[0].getStatistics().clone();
+		for (int i = 0; i < total.length; i++) {
+			total[i] = total[i].snapshot();
+			for (int j = 1; j < ts.length; j++)
+				total[i].merge(ts[j].getStatistics()[i].snapshot());
+		}
+		return encodeStatistics(total);
+	}
+
+	private static String encodeStatistics(SampleStatistics[] total)
+	{
+		StringBuilder ret = new StringBuilder();
+		for (int i = 0; i < total.length; i++) {
+			if (i > 0)
+				ret.append(';');
+			ret.append(total[i].encode());
+		}
+		return ret.toString();
+	}
+
+	private static SampleStatistics[] decodeStatistics(String s)
+	{
+		String[] parts = s.split(";");
+		SampleStatistics[] ret = new SampleStatistics[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			ret[i] = SampleStatistics.decode(parts[i]);
+		return ret;
+	}
+
+	private static void setStatistics(TraceGenerator t,
+	                                  SampleStatistics[] s)
+	{
+		SampleStatistics[] stats = t.getStatistics();
+		if (s.length != stats.length)
+			throw new IllegalArgumentException("Statistics of worker do not match property.");
+		for (int i = 0; i < stats.length; i++) {
+			stats[i].clear();
+			stats[i].merge(s[i]);
+		}
+	}
+
 	public SimulationResult simUnsafeRelErr(double err, double alpha)
 	{
 		long maxN = 1000;
@@ -285,7 +801,9 @@ public class Simulator {
 	{
 		if (REL_ERR_RATE <= 0)
 			return simUnsafeRelErr(err, alpha);
-		long maxN = 1000 * coresToUse;
+		if (sequentialRelErr)
+			return simSequentialRelErr(err, alpha, limitN);
+		long maxN = 1000 * roundScale();
 		long totalSims[] = new long[2];
 		double totalAlpha = alpha, consumedAlpha;
 		double lbound = 0, ubound = 1, mean;
@@ -373,4 +891,248 @@ public class Simulator {
 				totalAlpha, Double.NaN, lbound, ubound,
 				totalSims, exactTime, initSize);
 	}
+
+	/**
+	 * Simulate until the relative error is at most err, pooling
+	 * all simulations of all rounds into a single estimate.
+	 *
+	 * Every time the pooled interval is checked we use a smaller
+	 * confidence level (alpha * 6 / (pi^2 k^2) for the k'th check),
+	 * so that by the union bound all intervals simultaneously hold
+	 * with probability at least 1 - alpha, whenever we stop.
+	 */
+	public SimulationResult simSequentialRelErr(double err, double alpha,
+	                                            long limitN)
+	{
+		return simSequentialRelErrAll(err, alpha, limitN)[0];
+	}
+
+	/**
+	 * As simSequentialRelErr(), but continues until the results of
+	 * all properties estimated by the trace generator have reached
+	 * the relative error.
+	 *
+	 * If a checkpoint file has been set, the state of the
+	 * simulation is written to it after every round and at least
+	 * every CHECKPOINT_INTERVAL, and the simulation continues from
+	 * the checkpoint if it is to be resumed.
+	 */
+	public SimulationResult[] simSequentialRelErrAll(double err,
+	                                                 double alpha,
+	                                                 long limitN)
+	{
+		long N = 0, roundEnd = 10000 * roundScale();
+		int initSize = gen.scheme.model.size();
+		SimulationResult[] results = null;
+		double alphaK = 0;
+		boolean restart = true;
+		int k = 0;
+		long startTime = System.nanoTime();
+		long timeLimit = 0;
+
+		if (checkpointFile != null) {
+			timeLimit = CHECKPOINT_INTERVAL;
+			if (resume && checkpointFile.exists()) {
+				try {
+					Checkpoint c = readCheckpoint();
+					k = c.k;
+					alphaK = c.alphaK;
+					roundEnd = c.roundEnd;
+					startTime -= c.elapsed;
+					N = c.N;
+					restart = false;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				if (showProgress)
+					System.err.format("Resuming after %d simulations (check %d)\n", N, k);
+			}
+		}
+		if (limitN > 0 && roundEnd > limitN)
+			roundEnd = limitN;
+
+		while (true) {
+			int threads = restart ? coresToUse : workerGens.length;
+			while (N < roundEnd) {
+				multiCoreSim(roundEnd - N, threads, restart,
+				             timeLimit);
+				restart = false;
+				N = 0;
+				for (TraceGenerator t : workerGens)
+					N += t.getStatistics()[0].getN();
+				if (checkpointFile != null)
+					writeCheckpoint(k, alphaK, roundEnd, N, startTime);
+			}
+			results = gen.getResults(workerGens, alphaK > 0 ? alphaK : 0.05);
+			synchronized(this) {
+				lastResults = results;
+				currentGenerators = null;
+			}
+			N = results[0].N;
+			if (alphaK > 0) {
+				boolean done = true;
+				for (SimulationResult result : results) {
+					double curRelErr = result.getRelErr();
+					if (showProgress) {
+						System.err.format("Current estimate: [%g; %g]\n", result.lbound, result.ubound);
+						System.err.format("Relative error %e after %d simulations\n", curRelErr, N);
+					}
+					if (result.M == 0 || !(curRelErr <= err))
+						done = false;
+				}
+				if (done)
+					break;
+			}
+			if (limitN > 0 && N >= limitN)
+				break;
+
+			long maxN;
+			if (minHits(results) >= 10) {
+				k++;
+				alphaK = alpha * 6 / (Math.PI * Math.PI * k * k);
+				double Z = SimulationResult.CIwidth(alphaK / 2);
+				double needed = 0;
+				for (SimulationResult result : results) {
+					double mean = result.mean;
+					double n = result.var * Z * Z;
+					n /= err * err * mean * mean;
+					if (!(n <= needed))
+						needed = n;
+				}
+				maxN = Math.max((long)needed - N, N / 2);
+				if (!(needed < Double.POSITIVE_INFINITY))
+					maxN = N;
+			} else {
+				/* First try to hit the target at all, to
+				 * get a rough estimate of the variance. */
+				alphaK = 0;
+				maxN = 9 * N;
+			}
+			if (limitN > 0 && N + maxN > limitN)
+				maxN = limitN - N;
+			if (showProgress && alphaK > 0)
+				System.err.format("Running %d more simulations (check %d, alpha %g)\n", maxN, k, alphaK);
+			roundEnd = N + maxN;
+		}
+		if (alphaK == 0) {
+			/* Hit the simulation limit without checking the
+			 * interval of the final round. */
+			k++;
+			alphaK = alpha * 6 / (Math.PI * Math.PI * k * k);
+			results = gen.getResults(workerGens, alphaK);
+		}
+		long exactTime = System.nanoTime() - startTime;
+		SimulationResult[] ret = new SimulationResult[results.length];
+		for (int i = 0; i < results.length; i++) {
+			SimulationResult r = results[i];
+			ret[i] = new SimulationResult(r.property, r.mean, alpha,
+					r.var, r.lbound, r.ubound,
+					new long[] {r.N, r.M}, exactTime,
+					initSize);
+		}
+		return ret;
+	}
+
+	/**
+	 * The hits and misses of the cache of path probabilities (for
+	 * path-based forcing), or null if the simulations use none.
+	 */
+	public String pathCacheStatistics()
+	{
+		PathProbabilityCache c = gen.getPathCache();
+		if (c == null)
+			return null;
+		return c.toString();
+	}
+
+	/**
+	 * Write checkpoints of sequential relative-error simulations
+	 * to the given file, and resume from it if it exists and
+	 * resume is true.
+	 *
+	 * @param fingerprint Identifies the model and options of the
+	 * run: a checkpoint with a different one is rejected.
+	 */
+	public void setCheckpoint(File f, boolean resume, String fingerprint)
+	{
+		checkpointFile = f;
+		this.resume = resume;
+		checkpointFingerprint = fingerprint;
+	}
+
+	private static class Checkpoint {
+		int k;
+		double alphaK;
+		long roundEnd, N, elapsed, sampleBase;
+	}
+
+	private void writeCheckpoint(int k, double alphaK, long roundEnd,
+	                             long N, long startTime)
+	{
+		File tmp = new File(checkpointFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(
+				new FileOutputStream(tmp))))
+		{
+			out.writeUTF(CHECKPOINT_MAGIC);
+			out.writeUTF(checkpointFingerprint);
+			out.writeUTF(gen.prop.name);
+			out.writeInt(k);
+			out.writeDouble(alphaK);
+			out.writeLong(roundEnd);
+			out.writeLong(N);
+			out.writeLong(System.nanoTime() - startTime);
+			out.writeLong(sampleBase);
+			out.writeInt(workerGens.length);
+			for (TraceGenerator t : workerGens)
+				t.writeCheckpoint(out);
+		} catch (IOException e) {
+			System.err.println("Unable to write checkpoint: " + e);
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), checkpointFile.toPath(),
+			           StandardCopyOption.REPLACE_EXISTING,
+			           StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Unable to write checkpoint: " + e);
+		}
+	}
+
+	private Checkpoint readCheckpoint() throws IOException
+	{
+		Checkpoint ret = new Checkpoint();
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(
+				new FileInputStream(checkpointFile))))
+		{
+			if (!in.readUTF().equals(CHECKPOINT_MAGIC))
+				throw new IOException(checkpointFile + " is not a checkpoint.");
+			if (!in.readUTF().equals(checkpointFingerprint))
+				throw new IOException(checkpointFile + " is a checkpoint for a different model, constants or options.");
+			String name = in.readUTF();
+			if (!name.equals(gen.prop.name))
+				throw new IOException(checkpointFile + " is a checkpoint for property " + name + ", not " + gen.prop.name);
+			ret.k = in.readInt();
+			ret.alphaK = in.readDouble();
+			ret.roundEnd = in.readLong();
+			ret.N = in.readLong();
+			ret.elapsed = in.readLong();
+			sampleBase = in.readLong();
+			int threads = in.readInt();
+			getWorkerGenerators(threads, true);
+			for (TraceGenerator t : workerGens)
+				t.readCheckpoint(in);
+			pooled = null;
+		}
+		return ret;
+	}
+
+	private static long minHits(SimulationResult[] results)
+	{
+		long ret = Long.MAX_VALUE;
+		for (SimulationResult r : results)
+			ret = Math.min(ret, r.M);
+		return ret;
+	}
 }
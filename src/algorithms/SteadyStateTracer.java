@@ -9,15 +9,13 @@ import java.util.Random;
  */
 public class SteadyStateTracer extends TraceGenerator
 {
-	private long N;
-	private long M;
-	private double sumRedTime;
-	private double sumTime;
-	private double sumRedTimesSquared;
-	private double sumTimesSquared;
-	private double estMeanTime;
-	private double estMeanRedTime;
-	private boolean hasDeadlocks;
+	/* Red time (weighted by likelihood) and total time per cycle. */
+	private final SampleStatistics stats = new SampleStatistics(2);
+	/* If the model can deadlock, we instead estimate the
+	 * probability of deadlocking in a red state, using only the
+	 * cycles that deadlocked.
+	 */
+	private final SampleStatistics deadlockStats = new SampleStatistics(1);
 	private final SteadyStateTracer mcTracer;
 
 	public SteadyStateTracer(Random rng, Scheme s, Property p)
@@ -33,52 +31,14 @@ public class SteadyStateTracer extends TraceGenerator
 
 	public TraceGenerator copy()
 	{
-		SteadyStateTracer ret;
-		ret = new SteadyStateTracer(subRNG(), scheme.clone(), prop);
-		ret.hasDeadlocks = hasDeadlocks;
-		ret.estMeanTime = estMeanTime;
-		ret.estMeanRedTime = estMeanRedTime;
-		return ret;
+		return new SteadyStateTracer(subRNG(), scheme.clone(), prop);
 	}
 
 	public void reset()
 	{
 		super.reset();
-		hasDeadlocks = false;
-		N = M = 0;
-		sumRedTime = sumTime = sumRedTimesSquared = sumTimesSquared = 0;
-		estMeanTime = estMeanRedTime = 0;
-	}
-
-	public void resetAndEstimateMeans()
-	{
-		double emt = 0, emrt = 0;
-		if (N > 0) {
-			emt = sumTime / N;
-			emrt = sumRedTime / N;
-		}
-		super.resetAndEstimateMeans();
-		estMeanTime = emt;
-		estMeanRedTime = emrt;
-		hasDeadlocks = false;
-	}
-
-	public void resetAndEstimateMeans(TraceGenerator[] ts)
-	{
-		double sum = 0;
-		double sumRed = 0;
-		long N = 0;
-		super.resetAndEstimateMeans(ts);
-		for (TraceGenerator t : ts) {
-			if (t instanceof SteadyStateTracer) {
-				sum += ((SteadyStateTracer)t).sumTime;
-				sumRed += ((SteadyStateTracer)t).sumRedTime;
-				N += ((SteadyStateTracer)t).N;
-			}
-		}
-		estMeanTime = sum / N;
-		estMeanRedTime = sumRed / N;
-		hasDeadlocks = false;
+		stats.clear();
+		deadlockStats.clear();
 	}
 
 	public void sample()
@@ -113,22 +73,10 @@ public class SteadyStateTracer extends TraceGenerator
 			 * P(eventually red), probably very badly due to
 			 * the importance sampling.
 			 */
-			synchronized(this) {
-				if (!hasDeadlocks) {
-					/* We didn't know yet we could deadlock.
-					 * */
-					hasDeadlocks = true;
-					M = 0;
-					N = 0;
-					sumRedTime = sumRedTimesSquared = 0;
-				}
-				N++;
-				if (prop.isRed(model, state)) {
-					M++;
-					sumRedTime += likelihood;
-					sumRedTimesSquared = Math.fma(likelihood, likelihood, sumRedTimesSquared);
-				}
-			}
+			if (prop.isRed(model, state))
+				deadlockStats.add(likelihood, true);
+			else
+				deadlockStats.add(0, false);
 		}
 
 		/* Now do a cycle without IS to measure cycle duration. */
@@ -143,114 +91,80 @@ public class SteadyStateTracer extends TraceGenerator
 			if (state == prevState)
 				deadlocked = true;
 		} while(!prop.isBlue(model, state) && !deadlocked);
-		synchronized(this) {
-			if (deadlocked) {
-				if (!hasDeadlocks) {
-					/* We didn't know yet we could deadlock.
-					 * */
-					hasDeadlocks = true;
-					M = 0;
-					N = 0;
-					sumRedTime = sumRedTimesSquared = 0;
-				}
-				N++;
-				if (prop.isRed(model, state)) {
-					M++;
-					sumRedTime += 1;
-					sumRedTimesSquared += 1;
-				}
-			}
-			if (!hasDeadlocks) {
-				N++;
-				if (timeInRed > 0) {
-					M++;
-					sumRedTime = Math.fma(timeInRed, likelihood, sumRedTime);
-					double Z = Math.fma(timeInRed, likelihood, -estMeanRedTime);
-					sumRedTimesSquared = Math.fma(Z, Z, sumRedTimesSquared);
-				}
-				sumTime += totalTime;
-				totalTime -= estMeanTime;
-				sumTimesSquared = Math.fma(totalTime, totalTime, sumTimesSquared);
-			}
+		if (deadlocked) {
+			if (prop.isRed(model, state))
+				deadlockStats.add(1, true);
+			else
+				deadlockStats.add(0, false);
+		} else if (deadlockStats.getN() == 0) {
+			stats.add(timeInRed * likelihood, totalTime,
+			          timeInRed > 0);
 		}
 	}
 
-	private SimulationResult getDeadlockResult(double alpha)
+	private SimulationResult getDeadlockResult(SampleStatistics stats,
+	                                           double alpha)
 	{
 		long time = getElapsedTime();
-		double mean = sumRedTime / N;
-		double var = Math.fma(-sumRedTime, mean, sumRedTimesSquared);
-		var /= N - 1;
+		long N = stats.getN(), M = stats.getM();
+		double mean = stats.getMean(0);
+		double var = stats.getVariance(0);
 
 		return new SimulationResult(prop, alpha, mean, var, new long[]{N, M}, time, scheme.storedStates());
 
 	}
 
-	public synchronized SimulationResult getResult(double alpha)
+	public SimulationResult getResult(double alpha)
+	{
+		SampleStatistics dl = deadlockStats.snapshot();
+		if (dl.getN() > 0)
+			return getDeadlockResult(dl, alpha);
+		return getResult(stats.snapshot(), alpha);
+	}
+
+	private SimulationResult getResult(SampleStatistics stats,
+	                                   double alpha)
 	{
-		if (hasDeadlocks)
-			return getDeadlockResult(alpha);
 		long time = getElapsedTime();
-		double meanZ = sumRedTime / N;
-		double meanT = sumTime / N;
+		long N = stats.getN(), M = stats.getM();
+		double meanZ = stats.getMean(0);
+		double meanT = stats.getMean(1);
 		if (M <= 1) {
-			return new SimulationResult(prop, sumRedTime / sumTime, alpha, Double.NaN, 0, Double.POSITIVE_INFINITY, new long[]{N, M}, time, scheme.storedStates());
+			return new SimulationResult(prop, meanZ / meanT, alpha, Double.NaN, 0, Double.POSITIVE_INFINITY, new long[]{N, M}, time, scheme.storedStates());
 		}
 		if (Simulator.VERBOSE) {
 			System.err.println("Estimator for Z (unavail. time during cycle): " + meanZ);
 			System.err.println("Estimator for D (total    time during cycle): " + meanT);
 		}
-		double varZ = Math.fma(N, -estMeanRedTime, sumRedTime);
-                varZ = Math.fma(-varZ, meanZ - estMeanRedTime, sumRedTimesSquared);
-                double varT = Math.fma(N, -estMeanTime, sumTime);
-                varT = Math.fma(-varT, meanT - estMeanTime, sumTimesSquared);
+		double varZ = stats.getSquaredDeviations(0);
+		double varT = stats.getSquaredDeviations(1);
 
-                double meanV = sumRedTime/sumTime;
-                double varV = N*Math.fma(meanV, meanV*varT, varZ)*N;
-                varV /= (N-1)*sumTime*sumTime;
+		double meanV = meanZ / meanT;
+		double varV = Math.fma(meanV, meanV*varT, varZ);
+		varV /= (N-1)*meanT*meanT;
 
 		return new SimulationResult(prop, alpha, meanV, varV, new long[]{N, M}, time, scheme.storedStates());
 	}
 
 	public SimulationResult getResult(TraceGenerator[] ts, double alpha)
 	{
-		boolean deadlock = false;
-		hasDeadlocks = false;
-		N = M = 0;
-		sumRedTime = sumTime = sumRedTimesSquared = sumTimesSquared = 0;
+		SampleStatistics total = new SampleStatistics(2);
+		SampleStatistics deadlocks = new SampleStatistics(1);
 
 		for (TraceGenerator t : ts) {
 			if (t instanceof SteadyStateTracer) {
 				SteadyStateTracer st = (SteadyStateTracer)t;
-				synchronized(st) {
-					if (deadlock && !st.hasDeadlocks)
-						continue;
-					if (st.hasDeadlocks && !deadlock) {
-						N = M = 0;
-						deadlock = true;
-						hasDeadlocks = true;
-						sumRedTime = sumRedTimesSquared = 0;
-					}
-					if (!deadlock
-					    && (estMeanTime != st.estMeanTime
-						|| estMeanRedTime != st.estMeanRedTime))
-					{
-						N = M = 0;
-						sumRedTime = sumTime = 0;
-						sumRedTimesSquared = 0;
-						sumTimesSquared = 0;
-					}
-					estMeanTime = st.estMeanTime;
-					estMeanRedTime = st.estMeanRedTime;
-					sumTime += st.sumTime;
-					sumRedTime += st.sumRedTime;
-					sumTimesSquared += st.sumTimesSquared;
-					sumRedTimesSquared += st.sumRedTimesSquared;
-					N += st.N;
-					M += st.M;
-				}
+				deadlocks.merge(st.deadlockStats.snapshot());
+				total.merge(st.stats.snapshot());
 			}
 		}
-		return getResult(alpha);
+		if (deadlocks.getN() > 0)
+			return getDeadlockResult(deadlocks, alpha);
+		return getResult(total, alpha);
+	}
+
+	public SampleStatistics[] getStatistics()
+	{
+		return new SampleStatistics[] {stats, deadlockStats};
 	}
 }
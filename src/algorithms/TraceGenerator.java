@@ -1,20 +1,28 @@
 package algorithms;
 
 import models.StateSpace;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.Map;
 import java.util.Random;
+import java.util.random.RandomGenerator;
 import nl.utwente.ewi.fmt.EXPRES.Property;
+import nl.ennoruijters.interval.RandomSource;
 import nl.ennoruijters.interval.XoroShiro128RandomSource;
 import ec.util.MersenneTwisterFast;
 
 /* General note: Only use one of extendPath, drawDelta, or drawMeanDelta
  * per transition.
  * Multiple calls may yield different paths through HPCs.
+ * If the HPC has a phase-type representation of its exit times,
+ * drawDelta draws the time directly and does not choose a path at all.
  */
 public abstract class TraceGenerator
 {
 	public static double acceleration = 1;
+	/** Draw untruncated sojourn times using ZigguratExponential. */
+	public static boolean useZiggurat = false;
 	public final double forceBound;
 	public static boolean enableHpcBoost = true;
 
@@ -27,9 +35,10 @@ public abstract class TraceGenerator
 	private StateSpace.Neighbours nbs;
 	private double delta;
 	private double lastDeltaLikelihood;
-	private double[] pReachSink = new double[1];
 
 	private final Random rng;
+	/* The same generator, used on the hot paths. */
+	private final RandomSource src;
 
 	public TraceGenerator(Random rng, Scheme scheme, Property prop)
 	{
@@ -41,15 +50,19 @@ public abstract class TraceGenerator
 		this.scheme = scheme;
 		this.prop = prop;
 		this.rng = rng;
+		src = RandomSource.of(rng);
 		this.forceBound = forceBound;
 		startTime = System.nanoTime();
 	}
 
 	protected Random subRNG()
 	{
-		Random ret;
-		if (rng instanceof XoroShiro128RandomSource) {
-			ret = ((XoroShiro128RandomSource)rng).long_jump();
+		Random ret = null;
+		if (rng instanceof RandomGenerator.LeapableGenerator) {
+			RandomGenerator r;
+			r = ((RandomGenerator.LeapableGenerator)rng).copyAndLeap();
+			if (r instanceof Random)
+				ret = (Random)r;
 		} else if (rng instanceof MersenneTwisterFast) {
 			/* To be deterministic, we instantiate several new
 			 * RNGs from the original. We use XoroShiro to select
@@ -63,7 +76,8 @@ public abstract class TraceGenerator
 			for (int j = 0; j < state.length; j++)
 				state[j] = t.nextInt();
 			ret = new MersenneTwisterFast(state);
-		} else {
+		}
+		if (ret == null) {
 			System.err.println("WARNING: Unknown RNG for multicore simulation, defaulting to Xoroshiro128.");
 			ret = new XoroShiro128RandomSource(rng.nextLong());
 		}
@@ -72,10 +86,27 @@ public abstract class TraceGenerator
 
 	public abstract TraceGenerator copy();
 
+	/**
+	 * Prepare this generator for a new round of simulations:
+	 * clear the statistics and take over any settings from the
+	 * given generator (as copy() would), while keeping the RNG
+	 * stream and scheme of this generator.
+	 */
+	public void restartFrom(TraceGenerator template)
+	{
+		reset();
+	}
+
 	public void reseedRNG(long seed) {
 		rng.setSeed(seed);
 	}
 
+	/** Draw a seed for other streams from this generator's. */
+	long drawSeed()
+	{
+		return rng.nextLong();
+	}
+
 	public StateSpace.State drawNextState(StateSpace.State state) {
 		return drawNextState(state, Double.POSITIVE_INFINITY);
 	}
@@ -96,7 +127,22 @@ public abstract class TraceGenerator
 			return prevState;
 		}
 		double sumProb = 0;
-		double u = rng.nextDouble() * scheme.totalStateWeightIS;
+		double u = src.randDouble() * scheme.totalStateWeightIS;
+		double[] cum = scheme.cumWeightsIS;
+		if (cum != null && u < cum[0]) {
+			/* Find the last i with u < cum[i], as the scan
+			 * below would. */
+			int lo = 0, hi = cum.length - 1;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (u < cum[mid])
+					lo = mid;
+				else
+					hi = mid - 1;
+			}
+			chosen = lo;
+			return scheme.neighbours[lo];
+		}
 		for (int i = scheme.neighbours.length - 1; i >= 0; i--) {
 			sumProb += scheme.stateWeightsIS[i];
 			if(u < sumProb) {
@@ -105,7 +151,7 @@ public abstract class TraceGenerator
 				return scheme.neighbours[i];
 			}
 		}
-		System.err.println("WARNING: State selection problem from state " + Arrays.toString(prevState.state) + ", probably due to floating-point roundoff error.");
+		System.err.println("WARNING: State selection problem from state " + prevState + ", probably due to floating-point roundoff error.");
 		System.err.println("Probabilities: " + Arrays.toString(scheme.stateWeightsIS));
 		System.err.println("Random: " + u + " out of " + scheme.totalStateWeightIS + " (sum " + sumProb + ")");
 		System.err.println("Original: " + Arrays.toString(scheme.probs));
@@ -123,79 +169,60 @@ public abstract class TraceGenerator
 	}
 
 	/** Draw successor state conditional on eventually leaving the
-	 * HPC to the chosen state.
+	 * HPC to the chosen state, with the direct transition to that
+	 * state boosted by the given factor.
 	 */
-	/*
-	private int drawHPCSuccessor(int state, int sink)
-	{
-		double u = rng.nextDouble() * sumP;
-		for (state = 0; u > pReachSink[state]; state++)
-			;
-		return succ[state];
-	}
-	*/
 	private StateSpace.State drawHPCSuccessor(StateSpace.HPCState state, double sinkBoost)
 	{
-		StateSpace model = scheme.model;
 		StateSpace.State sink = scheme.neighbours[chosen];
-		StateSpace.State[] succ = state.origNeighbours.neighbours;
-		if (pReachSink.length < succ.length)
-			pReachSink = new double[succ.length];
-		double[] probs = state.origNeighbours.probs;
-		double sumP = 0;
-		double boost = 0;
-		double sinkProb = 0;
-		for (int i = 0; i < succ.length; i++) {
-			double p;
-			StateSpace.State s = succ[i];
-			if (s == sink) {
-				p = sinkBoost;
-				boost = (sinkBoost - 1) * probs[i];
-				sinkProb = probs[i];
-			}
-			else if (!(s instanceof StateSpace.HPCState))
-				p = 0;
-			else if (s == prevState)
-				p = scheme.probs[chosen];
-			else
-				p = ((StateSpace.HPCState)s).getProbTo(sink);
-			sumP = Math.fma(p, probs[i], sumP);
-			pReachSink[i] = sumP;
-		}
-		double u = rng.nextDouble() * sumP;
+		StateSpace.SinkTable t = state.getSinkTable(sink, chosen);
+		double[] cum = t.cum;
+		double total = cum[cum.length - 1];
+		double boost = (sinkBoost - 1) * t.sinkProb;
+		double sumP = total + boost;
+		double u = src.randDouble() * sumP;
 		int i;
-		for (i = 0; u > pReachSink[i]; i++)
-			;
-		StateSpace.State ret = succ[i];
+		if (t.sink < 0 || u < t.before)
+			i = search(cum, u, 0);
+		else if (u < t.before + t.sinkProb + boost)
+			i = t.sink;
+		else
+			i = search(cum, u - boost, t.sink + 1);
+		StateSpace.State ret = state.origNeighbours.neighbours[i];
 		if (ret == sink) {
-			double num = sumP * sinkProb;
-			double denom = (sumP - boost)*(sinkProb + boost);
+			double num = sumP * t.sinkProb;
+			double denom = total * (t.sinkProb + boost);
 			double ll = num / denom;
-			//System.err.println("Boosted likelihood: " + ll);
 			lastDeltaLikelihood *= ll;
-		} else if (boost != 1) {
-			double ll = sumP / (sumP - boost);
-			//System.err.println("Dropped likelihood: " + ll + ", sum " + sumP + ", boost " + boost);
+		} else if (boost != 0) {
+			double ll = sumP / total;
 			lastDeltaLikelihood *= ll;
 		}
 		return ret;
 	}
 
+	/** The first index i >= from with u < cum[i] (or the last). */
+	private static int search(double[] cum, double u, int from)
+	{
+		int lo = from, hi = cum.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (u < cum[mid])
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+
 	/**
-	 * Quick note on paths: The integer is actually the number of
-	 * visits minus one (i.e., it is possible to encounter the
-	 * Integer 0, meaning the state is visited once on the path).
+	 * Add the states visited by the last transition to the path:
+	 * the previous state, or all states traversed inside an HPC.
 	 */
-	public void extendPath(Map<StateSpace.State, int[]> path)
+	void extendPath(PathCounts path)
 	{
 		if(!(prevState instanceof StateSpace.HPCState)) {
-			int[] num = path.get(prevState);
-			if (num == null) {
-				num = new int[1];
-				path.put(prevState, num);
-			} else {
-				num[0]++;
-			}
+			path.add(prevState);
 			return;
 		}
 		StateSpace.State k = prevState;
@@ -203,13 +230,7 @@ public abstract class TraceGenerator
 		StateSpace.State sink = scheme.neighbours[chosen];
 
 		while(k != sink) {
-			int[] num = path.get(k);
-			if (num == null) {
-				num = new int[1];
-				path.put(k, num);
-			} else {
-				num[0]++;
-			}
+			path.add(k);
 			count++;
 			if (count % 1048576 == 0)
 				System.err.format("%d Tries.\n", count);
@@ -232,14 +253,18 @@ public abstract class TraceGenerator
 			double likelihood = -Math.expm1(-rate * timeLimit);
 			double rand;
 			lastDeltaLikelihood *= likelihood;
-			rand = Math.fma(rng.nextDouble(), likelihood, -likelihood);
+			rand = Math.fma(src.randDouble(), likelihood, -likelihood);
 			ret = -Math.log1p(rand);
 		} else {
-			long l = rng.nextLong();
-			if (l < 0)
-				ret = -Math.log1p(l * (-0.5 / Long.MIN_VALUE));
-			else
-				ret = -Math.log((~l) * (0.5 / Long.MIN_VALUE));
+			if (useZiggurat) {
+				ret = ZigguratExponential.next(src);
+			} else {
+				long l = src.randLong();
+				if (l < 0)
+					ret = -Math.log1p(l * (-0.5 / Long.MIN_VALUE));
+				else
+					ret = -Math.log((~l) * (0.5 / Long.MIN_VALUE));
+			}
 			if (acceleration != 1) {
 				rate *= acceleration;
 				lastDeltaLikelihood *= Math.exp(ret * (acceleration - 1)) / acceleration;
@@ -248,19 +273,29 @@ public abstract class TraceGenerator
 		return ret / rate;
 	}
 
-	/** Returns [time, likelihood] */
-	protected double[] pathToTimed(Map<StateSpace.State, int[]> path, double timeBound)
+	/**
+	 * Draw a sojourn time for every visit on the path.
+	 *
+	 * @return The total time; the likelihood ratio of the drawn
+	 * times is then given by deltaLikelihood().
+	 */
+	double pathToTimed(PathCounts path, double timeBound)
 	{
 		double origTimeBound = timeBound;
 		lastDeltaLikelihood = 1;
-		for (Map.Entry<StateSpace.State, int[]> entry : path.entrySet()) {
-			double rate = entry.getKey().getNeighbours().exitRate;
-			int count = entry.getValue()[0];
-			while (rate-- > 0)
+		for (int j = 0; j < path.size(); j++) {
+			double rate = path.state(j).getNeighbours().exitRate;
+			int count = path.visits(j);
+			while (count-- > 0)
 				timeBound -= drawExponential(rate, timeBound);
 		}
-		return new double[] {origTimeBound - timeBound,
-		                     lastDeltaLikelihood};
+		return origTimeBound - timeBound;
+	}
+
+	/** Likelihood ratio of the last sojourn time(s) drawn. */
+	double deltaLikelihood()
+	{
+		return lastDeltaLikelihood;
 	}
 
 	/**
@@ -279,6 +314,13 @@ public abstract class TraceGenerator
 			return delta;
 		}
 
+		StateSpace.HPCState hpc = (StateSpace.HPCState)prevState;
+		if (hpc.exitTimes != null && acceleration == 1) {
+			delta = drawExitTime(hpc.exitTimes, timeBound);
+			if (!Double.isNaN(delta))
+				return delta;
+		}
+
 		StateSpace.State s = prevState;
 		long count = 0;
 		StateSpace.State sink = scheme.neighbours[chosen];
@@ -312,6 +354,37 @@ public abstract class TraceGenerator
 		return delta;
 	}
 
+	/**
+	 * Draw the time until leaving the HPC of the previous state to
+	 * the chosen sink from its phase-type representation, forcing
+	 * it below the time bound as drawExponential would.
+	 *
+	 * @return The exit time, infinity if it exceeds the time bound,
+	 * or NaN if the sink is not in the representation.
+	 */
+	private double drawExitTime(StateSpace.HPCExitTimes et, double timeBound)
+	{
+		double[] cum = et.cumJumps[chosen];
+		if (cum.length == 0 || !(cum[cum.length - 1] > 0))
+			return Double.NaN;
+		double u = src.randDouble() * cum[cum.length - 1];
+		int jumps = search(cum, u, 0) + 1;
+		double limit = timeBound * et.rate;
+		double ret;
+		if (Double.isFinite(timeBound)
+		    && lastDeltaLikelihood > forceBound)
+		{
+			double likelihood = Erlang.cdf(jumps, limit);
+			lastDeltaLikelihood *= likelihood;
+			ret = Erlang.drawBelow(src, jumps, limit, likelihood);
+		} else {
+			ret = Erlang.draw(src, jumps);
+			if (ret > limit)
+				return Double.POSITIVE_INFINITY;
+		}
+		return ret / et.rate;
+	}
+
 	public double drawMeanTransitionTime() {
 		if (chosen == -1) {
 			lastDeltaLikelihood = 1;
@@ -350,23 +423,63 @@ public abstract class TraceGenerator
 		startTime = System.nanoTime();
 	}
 
-	public void resetAndEstimateMeans()
+	/** Get time in nanoseconds since creation or last reset. */
+	public long getElapsedTime()
 	{
-		reset();
+		return System.nanoTime() - startTime;
+	}
+
+	public abstract SimulationResult getResult(double alpha);
+	public abstract SimulationResult getResult(TraceGenerator[] ts, double alpha);
+
+	/** The cache of path probabilities used for path-based forcing,
+	 * if any. */
+	PathProbabilityCache getPathCache()
+	{
+		return null;
 	}
 
-	public void resetAndEstimateMeans(TraceGenerator[] ts)
+	/**
+	 * Get the results for all properties estimated by this
+	 * generator (by default only one).
+	 */
+	public SimulationResult[] getResults(TraceGenerator[] ts, double alpha)
 	{
-		reset();
+		return new SimulationResult[] {getResult(ts, alpha)};
 	}
 
-	/** Get time in nanoseconds since creation or last reset. */
-	public long getElapsedTime()
+	/**
+	 * The statistics kept by this generator, in a fixed order, so
+	 * that they can be exchanged with other processes simulating
+	 * the same property.
+	 */
+	public abstract SampleStatistics[] getStatistics();
+
+	/**
+	 * Write the state of the RNG and the statistics of this
+	 * generator, such that readCheckpoint() can continue exactly
+	 * where this generator stopped.
+	 */
+	public void writeCheckpoint(DataOutputStream out) throws IOException
 	{
-		return System.nanoTime() - startTime;
+		if (rng instanceof MersenneTwisterFast)
+			((MersenneTwisterFast)rng).writeState(out);
+		else
+			src.writeState(out);
+		for (SampleStatistics s : getStatistics())
+			out.writeUTF(s.snapshot().encode());
 	}
 
-	public abstract SimulationResult getResult(double alpha);
-	public abstract SimulationResult getResult(TraceGenerator[] ts, double alpha);
+	public void readCheckpoint(DataInputStream in) throws IOException
+	{
+		if (rng instanceof MersenneTwisterFast)
+			((MersenneTwisterFast)rng).readState(in);
+		else
+			src.readState(in);
+		for (SampleStatistics s : getStatistics()) {
+			s.clear();
+			s.merge(SampleStatistics.decode(in.readUTF()));
+		}
+	}
 	public abstract void sample();
 }
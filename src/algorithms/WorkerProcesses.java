@@ -0,0 +1,174 @@
+package algorithms;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A set of worker processes performing simulations on behalf of a
+ * coordinator, see Simulator.simWorkers() and Simulator.serve().
+ *
+ * Each worker loads the model itself and runs the same properties in
+ * the same order as the coordinator, using its own stream of random
+ * numbers. The workers are controlled over their standard input and
+ * output using a line-based protocol:
+ *
+ *   importance D  The importance function found by the coordinator
+ *             for the next property, as base64 data D (or "-" if
+ *             the search failed), so the workers need not search.
+ *   run N T   Run N simulations (unbounded if 0), stopping after T
+ *             milliseconds if T is positive. The worker replies
+ *             with one line containing its statistics.
+ *   run N T B As above, in reproducible mode, starting at sample
+ *             index B. The reply contains the statistics of each
+ *             chunk of samples, separated by '|'.
+ *   next      Continue with the next property.
+ *
+ * Since only the statistics are exchanged, the workers can run on
+ * other machines (e.g., started over ssh), as long as they see the
+ * same model.
+ */
+public class WorkerProcesses implements Closeable
+{
+	private final Process[] procs;
+	private final BufferedReader[] replies;
+	private final PrintStream[] commands;
+
+	/** Start one worker for each of the given command lines. */
+	public WorkerProcesses(List<List<String>> commandLines)
+			throws IOException
+	{
+		int n = commandLines.size();
+		procs = new Process[n];
+		replies = new BufferedReader[n];
+		commands = new PrintStream[n];
+		for (int i = 0; i < n; i++) {
+			ProcessBuilder pb = new ProcessBuilder(commandLines.get(i));
+			pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+			procs[i] = pb.start();
+			replies[i] = new BufferedReader(new InputStreamReader(
+					procs[i].getInputStream()));
+			commands[i] = new PrintStream(procs[i].getOutputStream());
+		}
+	}
+
+	public int size()
+	{
+		return procs.length;
+	}
+
+	/**
+	 * Let the workers run maxN simulations in total (divided evenly
+	 * over the workers, or unbounded if maxN is 0), each stopping
+	 * after msec milliseconds if msec is positive.
+	 *
+	 * @return The statistics reported by each worker.
+	 */
+	public String[] run(long maxN, int msec) throws IOException
+	{
+		int n = procs.length;
+		long[] quotas = new long[n];
+		for (int i = 0; i < n; i++) {
+			if (maxN > 0)
+				quotas[i] = maxN / n + (i < maxN % n ? 1 : 0);
+		}
+		return run(quotas, null, msec, maxN > 0);
+	}
+
+	/**
+	 * Let each worker run the given number of simulations, starting
+	 * at the given sample indices (in reproducible mode) if bases is
+	 * not null.
+	 *
+	 * @param bounded Whether a quota of 0 means no simulations
+	 * rather than unbounded.
+	 * @return The statistics reported by each worker.
+	 */
+	public String[] run(long[] quotas, long[] bases, int msec,
+	                    boolean bounded) throws IOException
+	{
+		int n = procs.length;
+		for (int i = 0; i < n; i++) {
+			long quota = quotas[i];
+			/* Don't let a worker interpret 0 as unbounded. */
+			if (bounded && quota == 0)
+				quota = -1;
+			String cmd = "run " + quota + " " + msec;
+			if (bases != null)
+				cmd += " " + bases[i];
+			commands[i].println(cmd);
+			commands[i].flush();
+		}
+		String[] ret = new String[n];
+		for (int i = 0; i < n; i++) {
+			ret[i] = replies[i].readLine();
+			if (ret[i] == null)
+				throw new IOException("Worker process " + i + " exited unexpectedly.");
+		}
+		return ret;
+	}
+
+	/**
+	 * Send the importance function of the next property to the
+	 * workers, or null if the search for it failed.
+	 */
+	public void shareImportance(byte[] data)
+	{
+		String cmd = "importance ";
+		if (data == null)
+			cmd += "-";
+		else
+			cmd += Base64.getEncoder().encodeToString(data);
+		for (PrintStream c : commands) {
+			c.println(cmd);
+			c.flush();
+		}
+	}
+
+	/**
+	 * Receive the importance function shared by the coordinator,
+	 * in a worker process.
+	 *
+	 * @return The data, or null if the search for it failed.
+	 */
+	public static byte[] receiveImportance(BufferedReader in)
+			throws IOException
+	{
+		String line = in.readLine();
+		if (line == null)
+			throw new IOException("Coordinator exited unexpectedly.");
+		if (!line.startsWith("importance "))
+			throw new IOException("Unexpected command: " + line);
+		String data = line.substring("importance ".length());
+		if (data.equals("-"))
+			return null;
+		return Base64.getDecoder().decode(data);
+	}
+
+	/** Let the workers continue with the next property. */
+	public void next()
+	{
+		for (PrintStream c : commands) {
+			c.println("next");
+			c.flush();
+		}
+	}
+
+	public void close() throws IOException
+	{
+		for (PrintStream c : commands)
+			c.close();
+		try {
+			for (Process p : procs)
+				p.waitFor();
+		} catch (InterruptedException e) {
+			for (Process p : procs)
+				p.destroy();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package algorithms;
+
+import nl.ennoruijters.interval.RandomSource;
+
+/**
+ * Exponentially distributed random numbers (with rate 1) using the
+ * ziggurat method of Marsaglia and Tsang.
+ *
+ * The density is covered by 256 layers of equal area. Each draw takes
+ * a single 64-bit random number: the top 8 bits choose the layer (the
+ * low bits of some generators, such as xoroshiro128+, are weak), the
+ * other 56 a point in it. Almost always (about 99%) the point lies under the
+ * density without further tests, so no logarithm or exponential needs
+ * to be computed.
+ */
+final class ZigguratExponential
+{
+	private static final int LAYERS = 256;
+	/* Start of the tail, and area of each layer. */
+	private static final double R = 7.69711747013104972;
+	private static final double V = 3.949659822581572e-3;
+
+	/* Layer i covers [0, x[i]) horizontally, and [f[i], f[i+1])
+	 * vertically. Layer 0 is the base, including the tail. */
+	private static final double[] x = new double[LAYERS + 1];
+	private static final double[] f = new double[LAYERS + 1];
+
+	static {
+		f[1] = Math.exp(-R);
+		x[0] = V / f[1];
+		x[1] = R;
+		for (int i = 1; i < LAYERS - 1; i++) {
+			f[i + 1] = f[i] + V / x[i];
+			x[i + 1] = -Math.log(f[i + 1]);
+		}
+		x[LAYERS] = 0;
+		f[LAYERS] = 1;
+		f[0] = 0;
+	}
+
+	private ZigguratExponential() { }
+
+	/** Draw an exponentially distributed number with rate 1. */
+	public static double next(RandomSource rng)
+	{
+		double offset = 0;
+		while (true) {
+			long l = rng.randLong();
+			int i = (int)(l >>> 56);
+			double z = (l & 0xffffffffffffffL) * 0x1.0p-56 * x[i];
+			if (z < x[i + 1])
+				return offset + z;
+			if (i == 0) {
+				/* The tail is again exponential. */
+				offset += R;
+				continue;
+			}
+			double u = (rng.randLong() >>> 11) * 0x1.0p-53;
+			double y = Math.fma(u, f[i + 1] - f[i], f[i]);
+			if (y < Math.exp(-z))
+				return offset + z;
+		}
+	}
+}
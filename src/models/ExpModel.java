@@ -33,12 +33,14 @@ public class ExpModel extends StateSpace
 
 	public ExpModel (double epsilon, LTS model) throws IOException
 	{
-		this(epsilon, model, null);
+		this(epsilon, model, (Property)null);
 	}
 
 	public ExpModel (double epsilon, LTS model, Property prop)
 	{
-		super(epsilon, model.getInitialState());
+		super(epsilon, model.getInitialState(), model.stateBits());
+		if (usePackedStates && !useTreeStates && !isPacked())
+			System.err.println("Warning: Packed states not supported for this model, storing them unpacked.");
 		logEpsilon = Math.log(epsilon);
 
 		comp = model;
@@ -48,6 +50,44 @@ public class ExpModel extends StateSpace
 		this.prop = prop;
 	}
 
+	/** State space numbering its states by the given store. */
+	protected ExpModel(double epsilon, LTS model, StateStore store)
+	{
+		super(epsilon, model.getInitialState(), store);
+		logEpsilon = Math.log(epsilon);
+		comp = model;
+		initialState = comp.getInitialState();
+		prop = null;
+	}
+
+	/** Whether the transition label is probabilistic (rather than
+	 * Markovian). */
+	static boolean isProbabilistic(String label)
+	{
+		if (label.charAt(0) == 'p')
+			return true;
+		else if (label.charAt(0) != 'r')
+			throw new IllegalArgumentException("Non-Markovian transition encountered: " + label);
+		return false;
+	}
+
+	/** The rate or probability of the transition label. */
+	static double rateOrProb(String label)
+	{
+		return Double.parseDouble(label.substring(1));
+	}
+
+	/** The order (in epsilon) of the rate or probability. */
+	static short order(double rateOrProb, double logEpsilon)
+	{
+		int order = (int)Math.ceil(Math.log(rateOrProb) / logEpsilon);
+		if (order < 0)
+			order = 0;
+		if (order > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Order does not fit in 16 bits.");
+		return (short)order;
+	}
+
 	public int getDimension()
 	{
 		return initialState.length;
@@ -55,7 +95,7 @@ public class ExpModel extends StateSpace
 
 	public Neighbours findNeighbours(State s)
 	{
-		int[] state = s.state;
+		int[] state = s.getVector();
 
 		Composition.statesExplored = 0;
 		//System.err.format("Neighbours from state %d (%s)\n", s, java.util.Arrays.toString(state));
@@ -72,22 +112,15 @@ public class ExpModel extends StateSpace
 
 		int i = 0;
 		for (LTS.Transition t : transitions) {
-			String rlabel = t.label.substring(1);
-			double rateOrProb = Double.parseDouble(rlabel);
-			if (t.label.charAt(0) == 'p')
+			double rateOrProb = rateOrProb(t.label);
+			if (isProbabilistic(t.label))
 				probabilistic = true;
-			else if (t.label.charAt(0) != 'r')
-				throw new IllegalArgumentException("Non-Markovian transition encountered: " + t.label);
-			int order = (int)Math.ceil(Math.log(rateOrProb) / logEpsilon);
-			if (order < 0)
-				order = 0;
-			if (order > Short.MAX_VALUE)
-				throw new IllegalArgumentException("Order does not fit in 16 bits.");
+			short order = order(rateOrProb, logEpsilon);
 			State z = findOrCreate(t.target.clone());
 			if (z.equals(s))
 				continue;
 			neighbours[i] = z;
-			orders[i] = (short)order;
+			orders[i] = order;
 			probs[i] = rateOrProb;
 			i++;
 		}
@@ -113,6 +146,6 @@ public class ExpModel extends StateSpace
 
 	public Number getVarValue(String variable, State state)
 	{
-		return comp.getVarValue(variable, state.state);
+		return state.varValue(comp, variable);
 	}
 }
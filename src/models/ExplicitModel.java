@@ -0,0 +1,299 @@
+package models;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import nl.utwente.ewi.fmt.EXPRES.LTS;
+import nl.utwente.ewi.fmt.EXPRES.NondeterminismException;
+import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
+
+/**
+ * State space of a model that is explored completely in advance, for
+ * models that fit in memory.
+ *
+ * The reachable states are numbered in breadth-first order, and their
+ * transitions are kept in compressed sparse row form: the transitions
+ * of state i are those from offsets[i] to offsets[i + 1] in the arrays
+ * of targets, probabilities and orders. The exploration is done once
+ * per model (in parallel) and shared by all state spaces of that
+ * model. Afterwards, finding the neighbours of a state only copies
+ * its row, without evaluating the model or hashing any vectors, and
+ * the targets of properties are looked up in precomputed bit sets.
+ */
+public class ExplicitModel extends ExpModel
+{
+	/* Number of states explored between merges of the new states. */
+	private static final int BLOCK = 4096;
+	/* Explorations by model and epsilon, shared by the state spaces
+	 * of all properties. The explorations do not refer to their
+	 * model, so they are dropped once the model is unreachable. */
+	private static final Map<LTS, Map<Double, Exploration>> explorations
+		= new WeakHashMap<>();
+
+	private final LTS model;
+	private final Exploration ex;
+	/* Truth values of the conditions asked for so far in all states,
+	 * by the identity of the condition. */
+	private volatile Object[] conditions = new Object[0];
+
+	private static final class Exploration
+	{
+		final StateStore store;
+		final int size;
+		final int[] offsets, targets;
+		final short[] orders;
+		final double[] probs, exitRates;
+
+		Exploration(StateStore store, int[] offsets, int[] targets,
+		            short[] orders, double[] probs, double[] exitRates)
+		{
+			this.store = store;
+			this.size = exitRates.length;
+			this.offsets = offsets;
+			this.targets = targets;
+			this.orders = orders;
+			this.probs = probs;
+			this.exitRates = exitRates;
+		}
+	}
+
+	/**
+	 * @param threads The number of threads to explore the model
+	 * with (if it has not been explored yet).
+	 */
+	public ExplicitModel(double epsilon, LTS model, int threads)
+	{
+		this(epsilon, model, explore(epsilon, model, threads));
+	}
+
+	private ExplicitModel(double epsilon, LTS model, Exploration ex)
+	{
+		super(epsilon, model, ex.store);
+		this.model = model;
+		this.ex = ex;
+	}
+
+	private static synchronized Exploration explore(double epsilon,
+	                                                LTS model,
+	                                                int threads)
+	{
+		Map<Double, Exploration> byEpsilon;
+		byEpsilon = explorations.computeIfAbsent(model,
+				(m) -> new HashMap<>());
+		Exploration ret = byEpsilon.get(epsilon);
+		if (ret == null) {
+			ret = new Explorer(epsilon, model, threads).explore();
+			byEpsilon.put(epsilon, ret);
+		}
+		return ret;
+	}
+
+	/** Number of states in the explored state space. */
+	public int exploredStates()
+	{
+		return ex.size;
+	}
+
+	/** Number of transitions in the explored state space. */
+	public int exploredTransitions()
+	{
+		return ex.offsets[ex.size];
+	}
+
+	public Neighbours findNeighbours(State s)
+	{
+		int id = s.storeId();
+		if (id < 0 || id >= ex.size)
+			return super.findNeighbours(s);
+		int from = ex.offsets[id], to = ex.offsets[id + 1];
+		State[] neighbours = new State[to - from];
+		for (int i = from; i < to; i++)
+			neighbours[i - from] = state(ex.targets[i]);
+		short[] orders = Arrays.copyOfRange(ex.orders, from, to);
+		double[] probs = Arrays.copyOfRange(ex.probs, from, to);
+		return explored(s, neighbours, orders, probs, ex.exitRates[id]);
+	}
+
+	public Boolean knownCondition(Expression cond, State s)
+	{
+		int id = s.storeId();
+		if (id < 0 || id >= ex.size)
+			return null;
+		return conditionBits(cond).get(id);
+	}
+
+	private BitSet conditionBits(Expression cond)
+	{
+		Object[] cs = conditions;
+		for (int i = 0; i < cs.length; i += 2) {
+			if (cs[i] == cond)
+				return (BitSet)cs[i + 1];
+		}
+		synchronized(this) {
+			cs = conditions;
+			for (int i = 0; i < cs.length; i += 2) {
+				if (cs[i] == cond)
+					return (BitSet)cs[i + 1];
+			}
+			BitSet bits = new BitSet(ex.size);
+			int[] vec = new int[ex.store.length()];
+			for (int i = 0; i < ex.size; i++) {
+				ex.store.get(i, vec);
+				Number n = cond.evaluate(model, vec);
+				if (n instanceof Integer || n instanceof Long)
+					bits.set(i, n.longValue() != 0);
+				else
+					bits.set(i, n.doubleValue() != 0);
+			}
+			cs = Arrays.copyOf(cs, cs.length + 2);
+			cs[cs.length - 2] = cond;
+			cs[cs.length - 1] = bits;
+			conditions = cs;
+			return bits;
+		}
+	}
+
+	/**
+	 * Breadth-first exploration of a model. The transitions of each
+	 * block of states are computed in parallel, after which their
+	 * targets are numbered in order, so the numbering does not
+	 * depend on the number of threads.
+	 */
+	private static final class Explorer
+	{
+		private final double logEpsilon;
+		private final LTS model;
+		private final int threads;
+		private final TreeStateStore store;
+
+		private int[] offsets = new int[BLOCK + 1];
+		private int[] targets = new int[BLOCK];
+		private short[] orders = new short[BLOCK];
+		private double[] probs = new double[BLOCK];
+		private double[] exitRates = new double[BLOCK];
+		private int explored, transitions;
+
+		Explorer(double epsilon, LTS model, int threads)
+		{
+			this.logEpsilon = Math.log(epsilon);
+			this.model = model;
+			this.threads = Math.max(1, threads);
+			store = new TreeStateStore(model.getInitialState().length);
+			store.findOrAdd(model.getInitialState());
+		}
+
+		Exploration explore()
+		{
+			@SuppressWarnings({"unchecked", "rawtypes"})
+			Set<LTS.Transition>[] block = new Set[BLOCK];
+			while (explored < store.size()) {
+				int start = explored;
+				int end = Math.min(store.size(), start + BLOCK);
+				computeTransitions(block, start, end);
+				for (int i = start; i < end; i++) {
+					add(i, block[i - start]);
+					block[i - start] = null;
+				}
+			}
+			return new Exploration(store,
+					Arrays.copyOf(offsets, explored + 1),
+					Arrays.copyOf(targets, transitions),
+					Arrays.copyOf(orders, transitions),
+					Arrays.copyOf(probs, transitions),
+					Arrays.copyOf(exitRates, explored));
+		}
+
+		private Set<LTS.Transition> transitions(int id)
+		{
+			try {
+				return model.getTransitions(store.get(id));
+			} catch (NondeterminismException e) {
+				throw new UnsupportedOperationException(e);
+			}
+		}
+
+		private void computeTransitions(Set<LTS.Transition>[] block,
+		                                int start, int end)
+		{
+			int n = Math.min(threads, (end - start + 63) / 64);
+			if (n <= 1) {
+				for (int i = start; i < end; i++)
+					block[i - start] = transitions(i);
+				return;
+			}
+			AtomicInteger next = new AtomicInteger(start);
+			RuntimeException[] error = new RuntimeException[1];
+			Thread[] ts = new Thread[n];
+			for (int t = 0; t < n; t++) {
+				ts[t] = new Thread(() -> {
+					int i;
+					try {
+						while ((i = next.getAndIncrement()) < end)
+							block[i - start] = transitions(i);
+					} catch (RuntimeException e) {
+						next.set(end);
+						synchronized(error) {
+							error[0] = e;
+						}
+					}
+				});
+				ts[t].start();
+			}
+			try {
+				for (Thread t : ts)
+					t.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			synchronized(error) {
+				if (error[0] != null)
+					throw error[0];
+			}
+		}
+
+		/* Number the targets of the transitions of the next state,
+		 * as ExpModel.findNeighbours() does. */
+		private void add(int id, Set<LTS.Transition> trans)
+		{
+			if (transitions + trans.size() > targets.length) {
+				int len = Math.max(targets.length * 2,
+				                   transitions + trans.size());
+				targets = Arrays.copyOf(targets, len);
+				orders = Arrays.copyOf(orders, len);
+				probs = Arrays.copyOf(probs, len);
+			}
+			if (explored + 2 > offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				exitRates = Arrays.copyOf(exitRates, offsets.length - 1);
+			}
+			int first = transitions;
+			boolean probabilistic = false;
+			for (LTS.Transition t : trans) {
+				double rateOrProb = rateOrProb(t.label);
+				if (isProbabilistic(t.label))
+					probabilistic = true;
+				short order = order(rateOrProb, logEpsilon);
+				int z = store.findOrAdd(t.target);
+				if (z == id)
+					continue;
+				targets[transitions] = z;
+				orders[transitions] = order;
+				probs[transitions] = rateOrProb;
+				transitions++;
+			}
+			double totProb = 0;
+			for (int i = first; i < transitions; i++)
+				totProb += probs[i];
+			for (int i = first; i < transitions; i++)
+				probs[i] /= totProb;
+			if (probabilistic)
+				totProb = Double.POSITIVE_INFINITY;
+			exitRates[explored] = totProb;
+			offsets[++explored] = transitions;
+		}
+	}
+}
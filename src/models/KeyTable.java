@@ -0,0 +1,230 @@
+package models;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interning table of fixed-length keys of longs, numbering distinct
+ * keys consecutively from 0 in order of insertion.
+ *
+ * The keys are stored in large chunks of longs rather than in objects
+ * of their own. Lookups are lock-free. The index is divided into
+ * segments by hash code, and insertions lock only their segment.
+ */
+final class KeyTable
+{
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int SEGMENT_BITS = 6;
+	private static final VarHandle SLOT
+		= MethodHandles.arrayElementVarHandle(int[].class);
+
+	/* Longs per key */
+	private final int stride;
+	/* Chunks of keys, by id. The array of chunks is replaced (under
+	 * the lock of this table) when it grows, and all chunks are
+	 * allocated before any id in them is published. */
+	private volatile long[][] data = new long[0][];
+	private final AtomicInteger nextId = new AtomicInteger();
+	/* Ids below this have been added completely. Ids are taken
+	 * under the locks of different segments, so they may complete
+	 * out of order, but are published in order. */
+	private volatile int published;
+
+	private static final class Segment
+	{
+		/* Id + 1 of the keys in this segment, 0 if empty. */
+		volatile int[] slots = new int[16];
+		int count;
+	}
+	private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+	KeyTable(int stride)
+	{
+		this.stride = stride;
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = new Segment();
+	}
+
+	/**
+	 * The number of keys in this table: keys with smaller ids can
+	 * be read by get().
+	 */
+	public int size()
+	{
+		return published;
+	}
+
+	/** The number of bytes used by this table. */
+	public long bytesUsed()
+	{
+		long ret = 0;
+		for (long[] chunk : data) {
+			if (chunk != null)
+				ret += chunk.length * 8L;
+		}
+		for (Segment seg : segments)
+			ret += seg.slots.length * 4L;
+		return ret;
+	}
+
+	private static int hash(long[] key, int off, int len)
+	{
+		long h = 0;
+		for (int i = 0; i < len; i++) {
+			/* Finalizer of MurmurHash3 */
+			h ^= key[off + i];
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+		}
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int)h;
+	}
+
+	private Segment segment(int hash)
+	{
+		return segments[hash >>> (32 - SEGMENT_BITS)];
+	}
+
+	private static int slot(int hash, int mask)
+	{
+		return hash & mask;
+	}
+
+	private boolean matches(int id, long[] key)
+	{
+		long[] chunk = data[id >>> CHUNK_BITS];
+		int base = (id & (CHUNK_SIZE - 1)) * stride;
+		for (int i = 0; i < stride; i++) {
+			if (chunk[base + i] != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	/* The id of the key in the given slots, or -1. */
+	private int lookup(int[] slots, int hash, long[] key)
+	{
+		int mask = slots.length - 1;
+		int i = slot(hash, mask);
+		int v;
+		while ((v = (int)SLOT.getAcquire(slots, i)) != 0) {
+			if (matches(v - 1, key))
+				return v - 1;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/** The id of the given key, or -1 if it is not in the table. */
+	public int find(long[] key)
+	{
+		int hash = hash(key, 0, stride);
+		Segment seg = segment(hash);
+		int[] slots;
+		int id;
+		do {
+			slots = seg.slots;
+			id = lookup(slots, hash, key);
+		} while (id < 0 && slots != seg.slots);
+		return id;
+	}
+
+	/** The id of the given key, which is added if necessary. */
+	public int findOrAdd(long[] key)
+	{
+		int id = find(key);
+		if (id >= 0)
+			return id;
+		int hash = hash(key, 0, stride);
+		Segment seg = segment(hash);
+		synchronized(seg) {
+			id = lookup(seg.slots, hash, key);
+			if (id >= 0)
+				return id;
+			id = add(seg, hash, key);
+		}
+		/* Wait for the threads adding smaller ids, which only
+		 * hold their own segment lock. */
+		while (published != id)
+			Thread.yield();
+		published = id + 1;
+		return id;
+	}
+
+	/* Called with the lock of the segment held. */
+	private int add(Segment seg, int hash, long[] key)
+	{
+		int id = nextId.getAndIncrement();
+		if (id < 0)
+			throw new IllegalStateException("Too many entries in key table.");
+		ensureChunk(id >>> CHUNK_BITS);
+		long[] chunk = data[id >>> CHUNK_BITS];
+		System.arraycopy(key, 0, chunk,
+		                 (id & (CHUNK_SIZE - 1)) * stride, stride);
+		if (++seg.count * 2 > seg.slots.length)
+			grow(seg);
+		int[] slots = seg.slots;
+		int mask = slots.length - 1;
+		int i = slot(hash, mask);
+		while (slots[i] != 0)
+			i = (i + 1) & mask;
+		SLOT.setRelease(slots, i, id + 1);
+		return id;
+	}
+
+	/** Copy the key with the given id into out. */
+	public void get(int id, long[] out)
+	{
+		long[] chunk = data[id >>> CHUNK_BITS];
+		System.arraycopy(chunk, (id & (CHUNK_SIZE - 1)) * stride,
+		                 out, 0, stride);
+	}
+
+	/** Word i of the key with the given id. */
+	public long get(int id, int i)
+	{
+		long[] chunk = data[id >>> CHUNK_BITS];
+		return chunk[(id & (CHUNK_SIZE - 1)) * stride + i];
+	}
+
+	private void ensureChunk(int c)
+	{
+		long[][] d = data;
+		if (c < d.length && d[c] != null)
+			return;
+		allocateChunk(c);
+	}
+
+	private synchronized void allocateChunk(int c)
+	{
+		if (c < data.length && data[c] != null)
+			return;
+		long[][] newData = Arrays.copyOf(data, Math.max(c + 1, data.length * 2));
+		newData[c] = new long[CHUNK_SIZE * stride];
+		data = newData;
+	}
+
+	/* Called with the lock of the segment held. */
+	private void grow(Segment seg)
+	{
+		int[] old = seg.slots;
+		int[] slots = new int[old.length * 2];
+		int mask = slots.length - 1;
+		for (int v : old) {
+			if (v == 0)
+				continue;
+			int id = v - 1;
+			long[] chunk = data[id >>> CHUNK_BITS];
+			int base = (id & (CHUNK_SIZE - 1)) * stride;
+			int i = slot(hash(chunk, base, stride), mask);
+			while (slots[i] != 0)
+				i = (i + 1) & mask;
+			slots[i] = v;
+		}
+		seg.slots = slots;
+	}
+}
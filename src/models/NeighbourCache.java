@@ -0,0 +1,210 @@
+package models;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the explored neighbours of the states of a state
+ * space.
+ *
+ * The neighbours are kept in the states themselves, so hits only
+ * update the use count of the state (the total number of hits is
+ * only counted if countHits is set, as the threads would contend for
+ * that counter). Once the estimated size of the cached neighbours
+ * exceeds the budget, entries are evicted by the generalized CLOCK
+ * policy: each hit (up to MAX_USES) buys an entry another pass of
+ * the clock hand, so frequently used states survive while states
+ * visited once are evicted first.
+ *
+ * Pinned states (HPC states, and states whose neighbours an
+ * importance sampling scheme refers to) are never evicted, and are
+ * not counted towards the budget.
+ */
+public final class NeighbourCache
+{
+	private static final int MAX_USES = 3;
+	/** Budget of new caches, in bytes. */
+	public static long defaultBudget = Runtime.getRuntime().maxMemory() / 4;
+	/** Count the hits of all caches (for getHits()). */
+	public static boolean countHits = false;
+
+	private long budget = defaultBudget;
+	private long bytes, pinnedBytes;
+	/* States with cached neighbours in order of insertion, with
+	 * holes (null) where states were evicted or pinned. */
+	private StateSpace.State[] ring = new StateSpace.State[1024];
+	private int count, holes, hand;
+	private long misses, evictions;
+	private final LongAdder hits = new LongAdder();
+
+	NeighbourCache() { }
+
+	/** Set the maximal (estimated) number of bytes to cache. */
+	public synchronized void setBudget(long bytes)
+	{
+		budget = bytes;
+		evict();
+	}
+
+	public synchronized long getBudget()
+	{
+		return budget;
+	}
+
+	/** Rough size of the given neighbours in bytes. */
+	static long size(StateSpace.Neighbours ns)
+	{
+		int n = ns.neighbours.length;
+		long ret = 40 + array(4L * n) + array(8L * n);
+		if (ns.orders != null)
+			ret += array(2L * n);
+		if (ns.cumProbs != null)
+			ret += array(8L * n);
+		return ret;
+	}
+
+	private static long array(long payload)
+	{
+		return 16 + ((payload + 7) & ~7L);
+	}
+
+	void hit(StateSpace.State s)
+	{
+		if (countHits)
+			hits.increment();
+		if (s.uses < MAX_USES)
+			s.uses++;
+	}
+
+	/** Cache newly explored neighbours of s. */
+	synchronized void add(StateSpace.State s, StateSpace.Neighbours ns)
+	{
+		misses++;
+		StateSpace.Neighbours prev = s.neighbours;
+		s.neighbours = ns;
+		if (s.pinned) {
+			if (prev != null)
+				pinnedBytes -= size(prev);
+			pinnedBytes += size(ns);
+			return;
+		}
+		if (s.slot >= 0) {
+			/* Explored concurrently by another thread */
+			bytes += size(ns) - size(prev);
+			return;
+		}
+		if (count == ring.length) {
+			if (holes > count / 2)
+				compact();
+			else
+				ring = Arrays.copyOf(ring, count * 2);
+		}
+		s.uses = 0;
+		s.slot = count;
+		ring[count++] = s;
+		bytes += size(ns);
+		evict();
+	}
+
+	/** Never evict the neighbours of s from now on. */
+	synchronized void pin(StateSpace.State s)
+	{
+		if (s.pinned)
+			return;
+		s.pinned = true;
+		StateSpace.Neighbours ns = s.neighbours;
+		if (ns == null)
+			return;
+		remove(s);
+		pinnedBytes += size(ns);
+	}
+
+	/** Stop tracking s (e.g., when it is replaced by an HPC). */
+	synchronized void remove(StateSpace.State s)
+	{
+		if (s.slot < 0)
+			return;
+		ring[s.slot] = null;
+		s.slot = -1;
+		holes++;
+		bytes -= size(s.neighbours);
+	}
+
+	private void evict()
+	{
+		while (bytes > budget && count > holes) {
+			if (hand >= count)
+				hand = 0;
+			StateSpace.State s = ring[hand];
+			if (s == null) {
+				hand++;
+				continue;
+			}
+			if (s.uses > 0) {
+				s.uses--;
+				hand++;
+				continue;
+			}
+			remove(s);
+			s.neighbours = null;
+			evictions++;
+			hand++;
+		}
+	}
+
+	private void compact()
+	{
+		int j = 0, newHand = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == hand)
+				newHand = j;
+			StateSpace.State s = ring[i];
+			if (s == null)
+				continue;
+			s.slot = j;
+			ring[j++] = s;
+		}
+		Arrays.fill(ring, j, count, null);
+		count = j;
+		holes = 0;
+		hand = newHand;
+	}
+
+	/** Number of hits, if countHits was set while simulating. */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/** Estimated size of the evictable cached neighbours. */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/** Estimated size of the pinned cached neighbours. */
+	public synchronized long getPinnedBytes()
+	{
+		return pinnedBytes;
+	}
+
+	public String toString()
+	{
+		long hits = getHits(), misses = getMisses();
+		double rate = hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+		return String.format("Neighbour cache: %d hits, %d misses (hit rate %.4f), %d evictions, %d kB cached + %d kB pinned (budget %d kB)",
+				hits, misses, rate, getEvictions(),
+				getBytes() / 1024, getPinnedBytes() / 1024,
+				getBudget() / 1024);
+	}
+}
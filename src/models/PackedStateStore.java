@@ -0,0 +1,100 @@
+package models;
+
+import java.util.Arrays;
+
+/**
+ * State store keeping each vector bit-packed, using the number of bits
+ * each element needs (see LTS.stateBits()).
+ */
+public final class PackedStateStore implements StateStore
+{
+	/* Bit offset and width of each element in a packed vector. */
+	private final int[] offsets, widths;
+	private final KeyTable table;
+	/* The packed vector being looked up, per thread. */
+	private final ThreadLocal<long[]> probe;
+
+	/**
+	 * @param bits The number of bits of each element of the vectors
+	 * (at most 32, elements with fewer bits must be nonnegative).
+	 */
+	public PackedStateStore(int[] bits)
+	{
+		widths = bits.clone();
+		offsets = new int[bits.length];
+		int off = 0;
+		for (int i = 0; i < bits.length; i++) {
+			if (bits[i] < 0 || bits[i] > 32)
+				throw new IllegalArgumentException("Invalid number of bits: " + bits[i]);
+			offsets[i] = off;
+			off += bits[i];
+		}
+		int stride = Math.max(1, (off + 63) / 64);
+		table = new KeyTable(stride);
+		probe = ThreadLocal.withInitial(() -> new long[stride]);
+	}
+
+	public int size()
+	{
+		return table.size();
+	}
+
+	public int length()
+	{
+		return widths.length;
+	}
+
+	public long bytesUsed()
+	{
+		return table.bytesUsed();
+	}
+
+	private long[] pack(int[] vec)
+	{
+		if (vec.length != widths.length)
+			throw new IllegalArgumentException("State vector of length " + vec.length + ", expected " + widths.length);
+		long[] out = probe.get();
+		Arrays.fill(out, 0);
+		for (int i = 0; i < vec.length; i++) {
+			int w = widths[i];
+			long v = vec[i] & 0xffffffffL;
+			if (w < 32 && (v >>> w) != 0)
+				throw new IllegalStateException("Value " + vec[i] + " does not fit in " + w + " bits for packed state storage.");
+			if (w == 0)
+				continue;
+			int off = offsets[i];
+			int word = off >>> 6, bit = off & 63;
+			out[word] |= v << bit;
+			if (bit + w > 64)
+				out[word + 1] |= v >>> (64 - bit);
+		}
+		return out;
+	}
+
+	public int find(int[] vec)
+	{
+		return table.find(pack(vec));
+	}
+
+	public int findOrAdd(int[] vec)
+	{
+		return table.findOrAdd(pack(vec));
+	}
+
+	public void get(int num, int[] out)
+	{
+		for (int i = 0; i < out.length; i++) {
+			int w = widths[i];
+			if (w == 0) {
+				out[i] = 0;
+				continue;
+			}
+			int off = offsets[i];
+			int word = off >>> 6, bit = off & 63;
+			long v = table.get(num, word) >>> bit;
+			if (bit + w > 64)
+				v |= table.get(num, word + 1) << (64 - bit);
+			out[i] = (int)(v & ((1L << w) - 1));
+		}
+	}
+}
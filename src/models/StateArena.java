@@ -0,0 +1,156 @@
+package models;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import nl.utwente.ewi.fmt.EXPRES.LTS;
+
+/**
+ * The states of a StateSpace whose vectors are kept in a StateStore
+ * rather than in an int[] of their own.
+ *
+ * Every state is identified by its number in the store, and the State
+ * objects only keep that id and their hash code. They are created on
+ * first use, so the store is the only thing that needs to be
+ * consistent between threads.
+ */
+final class StateArena
+{
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final VarHandle STATE
+		= MethodHandles.arrayElementVarHandle(StateSpace.State[].class);
+
+	private final StateSpace space;
+	private final StateStore store;
+	/* Chunks of states by id. The array of chunks is replaced
+	 * (under the lock of this arena) when it grows. */
+	private volatile StateSpace.State[][] states = new StateSpace.State[0][];
+
+	/* The vector last unpacked by varValue(), per thread, and
+	 * whether a lookup in it is in progress. */
+	private final class Scratch
+	{
+		final int[] vector = new int[store.length()];
+		int id = -1;
+		boolean inUse;
+	}
+	private final ThreadLocal<Scratch> scratch;
+
+	StateArena(StateSpace space, StateStore store)
+	{
+		this.space = space;
+		this.store = store;
+		scratch = ThreadLocal.withInitial(Scratch::new);
+	}
+
+	public int size()
+	{
+		return store.size();
+	}
+
+	/** The state with the given vector, or null if there is none. */
+	public StateSpace.State find(int[] vec)
+	{
+		int id = store.find(vec);
+		if (id < 0)
+			return null;
+		return state(id, vec);
+	}
+
+	/** The state with the given vector, created if necessary. */
+	public StateSpace.State findOrCreate(int[] vec)
+	{
+		return state(store.findOrAdd(vec), vec);
+	}
+
+	private StateSpace.State[] chunk(int id)
+	{
+		int c = id >>> CHUNK_BITS;
+		StateSpace.State[][] st = states;
+		if (c < st.length && st[c] != null)
+			return st[c];
+		return allocateChunk(c);
+	}
+
+	private synchronized StateSpace.State[] allocateChunk(int c)
+	{
+		if (c < states.length && states[c] != null)
+			return states[c];
+		StateSpace.State[][] st = Arrays.copyOf(states, Math.max(c + 1, states.length * 2));
+		st[c] = new StateSpace.State[CHUNK_SIZE];
+		states = st;
+		return st[c];
+	}
+
+	/* The state with the given id, created if necessary (vec is its
+	 * vector, or null if it must be looked up). */
+	private StateSpace.State state(int id, int[] vec)
+	{
+		StateSpace.State[] chunk = chunk(id);
+		int i = id & (CHUNK_SIZE - 1);
+		StateSpace.State ret = (StateSpace.State)STATE.getAcquire(chunk, i);
+		if (ret != null)
+			return ret;
+		if (vec == null)
+			vec = store.get(id);
+		StateSpace.State n = space.new State(id, Arrays.hashCode(vec));
+		ret = (StateSpace.State)STATE.compareAndExchange(chunk, i, null, n);
+		return ret == null ? n : ret;
+	}
+
+	/**
+	 * The state with the given id, or null if no State object has
+	 * been created for it (yet).
+	 */
+	public StateSpace.State stateIfPresent(int id)
+	{
+		StateSpace.State[][] st = states;
+		int c = id >>> CHUNK_BITS;
+		if (c >= st.length || st[c] == null)
+			return null;
+		return (StateSpace.State)STATE.getAcquire(st[c],
+				id & (CHUNK_SIZE - 1));
+	}
+
+	/** The current state with the given id. */
+	public StateSpace.State state(int id)
+	{
+		return state(id, null);
+	}
+
+	/** Replace the state with the given id (by an HPC state). */
+	public void replace(int id, StateSpace.State s)
+	{
+		STATE.setRelease(chunk(id), id & (CHUNK_SIZE - 1), s);
+	}
+
+	/** Unpack the vector of the given state into a new array. */
+	public int[] vector(int id)
+	{
+		return store.get(id);
+	}
+
+	/**
+	 * The value of a variable of the model in the given state. The
+	 * vector is unpacked into an array of the calling thread, which
+	 * is only lent to the model for this lookup (a nested lookup
+	 * gets a new array).
+	 */
+	public int varValue(LTS model, String variable, int id)
+	{
+		Scratch s = scratch.get();
+		if (s.inUse)
+			return model.getVarValue(variable, store.get(id));
+		if (s.id != id) {
+			store.get(id, s.vector);
+			s.id = id;
+		}
+		s.inUse = true;
+		try {
+			return model.getVarValue(variable, s.vector);
+		} finally {
+			s.inUse = false;
+		}
+	}
+}
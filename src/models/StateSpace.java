@@ -1,27 +1,35 @@
 package models;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.lang.ref.SoftReference;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
 
+import nl.utwente.ewi.fmt.EXPRES.LTS;
 import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
 
 public abstract class StateSpace {
 	public static class Neighbours {
+		/** States with fewer neighbours are chosen by a linear
+		 * scan, see cumulative(). */
+		public static final int CUMULATIVE_MIN_DEGREE = 16;
+
 		public final State[] neighbours;
 		public final short[] orders;
 		public final double[] probs;
+		/** cumulative(probs) */
+		public final double[] cumProbs;
 		public final double exitRate;
 
 		public Neighbours(State[] n, short[] o, double[] p, double R)
@@ -29,9 +37,32 @@ public abstract class StateSpace {
 			neighbours = n;
 			orders = o;
 			probs = p;
+			cumProbs = cumulative(p);
 			exitRate = R;
 		}
 
+		/**
+		 * Sums of the weights of each transition and all later
+		 * ones, accumulated from the last transition, so that a
+		 * transition can be chosen by binary search instead of a
+		 * linear scan.
+		 *
+		 * @return The sums, or null if there are too few
+		 * transitions for this to be worthwhile.
+		 */
+		public static double[] cumulative(double[] weights)
+		{
+			if (weights.length < CUMULATIVE_MIN_DEGREE)
+				return null;
+			double[] ret = new double[weights.length];
+			double sum = 0;
+			for (int i = weights.length - 1; i >= 0; i--) {
+				sum += weights[i];
+				ret[i] = sum;
+			}
+			return ret;
+		}
+
 		public double getProbTo(State state)
 		{
 			State[] ns = neighbours;
@@ -43,14 +74,59 @@ public abstract class StateSpace {
 		}
 	}
 	public class State {
-		public final int[] state;
+		/* The vector of this state, or null if it is stored
+		 * packed in the arena under the given id. */
+		private final int[] state;
+		private final int id;
 		private int cachedHashCode = 0;
-		private SoftReference<Neighbours> neighbours;
+		/* The state of this state in the neighbour cache: its
+		 * neighbours (if cached), its hits since the clock hand
+		 * last passed, its position in the clock (or -1) and
+		 * whether it is pinned. */
+		volatile Neighbours neighbours;
+		byte uses;
+		int slot = -1;
+		boolean pinned;
 
 		public State(int[] s)
 		{
 			state = s;
-			neighbours = null;
+			id = -1;
+		}
+
+		State(int id, int hash)
+		{
+			state = null;
+			this.id = id;
+			cachedHashCode = hash;
+		}
+
+		/** Copy of orig sharing its vector (or id). */
+		protected State(State orig)
+		{
+			state = orig.state;
+			id = orig.id;
+			cachedHashCode = orig.cachedHashCode;
+		}
+
+		/**
+		 * The vector of this state. With packed states, this
+		 * is a fresh copy, so avoid calling it in inner loops.
+		 */
+		public int[] getVector()
+		{
+			if (state != null)
+				return state;
+			return arena.vector(id);
+		}
+
+		/* The value of the given variable of the model in this
+		 * state, without copying a packed vector. */
+		int varValue(LTS model, String variable)
+		{
+			if (state != null)
+				return model.getVarValue(variable, state);
+			return arena.varValue(model, variable, id);
 		}
 
 		public boolean equals(Object o)
@@ -58,10 +134,31 @@ public abstract class StateSpace {
 			if (o == this)
 				return true;
 			if (o instanceof StateWrapper)
-				return Arrays.equals(state, ((StateWrapper)o).state);
-			else if (o instanceof State)
-				return Arrays.equals(state, ((State)o).state);
-			return false;
+				return Arrays.equals(getVector(), ((StateWrapper)o).state);
+			if (!(o instanceof State))
+				return false;
+			State other = (State)o;
+			if (state == null && other.state == null
+			    && arena() == other.arena())
+				return id == other.id;
+			return Arrays.equals(getVector(), other.getVector());
+		}
+
+		/* The number of this state in the store, or -1 if it
+		 * keeps its own vector. */
+		int storeId()
+		{
+			return id;
+		}
+
+		private StateArena arena()
+		{
+			return arena;
+		}
+
+		private StateSpace space()
+		{
+			return StateSpace.this;
 		}
 
 		public int hashCode()
@@ -73,19 +170,27 @@ public abstract class StateSpace {
 
 		public String toString()
 		{
-			return Arrays.toString(state);
+			return Arrays.toString(getVector());
 		}
 
 		public Neighbours getNeighbours()
 		{
-			Neighbours ns = null;
-			if (neighbours != null)
-				ns = neighbours.get();
-			if (ns == null) {
-				ns = findNeighbours(this);
-				neighbours = new SoftReference<>(ns);
+			Neighbours ns = neighbours;
+			if (ns != null) {
+				neighbourCache.hit(this);
+				return ns;
 			}
-			return ns;
+			return findNeighbours(this);
+		}
+
+		/**
+		 * Never evict the neighbours of this state from the
+		 * cache, e.g. because an importance sampling scheme
+		 * keeps information by the index of its neighbours.
+		 */
+		public void pin()
+		{
+			neighbourCache.pin(this);
 		}
 
 		public double getProbTo(State state)
@@ -121,7 +226,7 @@ public abstract class StateSpace {
 		public boolean equals(Object o)
 		{
 			if (o instanceof State)
-				return Arrays.equals(state, ((State)o).state);
+				return Arrays.equals(state, ((State)o).getVector());
 			if (!(o instanceof StateWrapper))
 				return false;
 			return Arrays.equals(state, ((StateWrapper)o).state);
@@ -137,13 +242,81 @@ public abstract class StateSpace {
 			return new StateWrapper(state);
 		}
 	}
+	/**
+	 * Distribution of the successor of an HPC state, on a walk
+	 * through the HPC conditional on leaving it to a given sink.
+	 */
+	public static final class SinkTable {
+		/** Cumulative weights of the original neighbours: the
+		 * probability of the transition times the probability
+		 * of eventually leaving to the sink from there. */
+		public final double[] cum;
+		/** Index of the sink in the original neighbours, or -1. */
+		public final int sink;
+		/** Probability of moving to the sink directly. */
+		public final double sinkProb;
+		/** Cumulative weight before the sink. */
+		public final double before;
+
+		SinkTable(HPCState s, State sinkState)
+		{
+			State[] succ = s.origNeighbours.neighbours;
+			double[] probs = s.origNeighbours.probs;
+			int sinkIdx = -1;
+			double sum = 0, pre = 0;
+			cum = new double[succ.length];
+			for (int i = 0; i < succ.length; i++) {
+				State n = succ[i];
+				double p;
+				if (n == sinkState) {
+					p = 1;
+					sinkIdx = i;
+					pre = sum;
+				} else if (n instanceof HPCState) {
+					p = n.getProbTo(sinkState);
+				} else {
+					p = 0;
+				}
+				sum = Math.fma(p, probs[i], sum);
+				cum[i] = sum;
+			}
+			sink = sinkIdx;
+			sinkProb = sinkIdx >= 0 ? probs[sinkIdx] : 0;
+			before = pre;
+		}
+	}
+
+	/**
+	 * Phase-type representation of the time until an HPC state
+	 * leaves its HPC, for each of its sinks.
+	 *
+	 * The HPC is uniformized with the given rate; cumJumps[d][k]
+	 * is the probability of leaving to sink d within k+1 jumps of
+	 * the uniformized chain. The exit time conditional on leaving
+	 * to d after exactly k jumps has an Erlang(k, rate)
+	 * distribution.
+	 */
+	public static final class HPCExitTimes {
+		public final double rate;
+		public final double[][] cumJumps;
+
+		public HPCExitTimes(double rate, double[][] cumJumps)
+		{
+			this.rate = rate;
+			this.cumJumps = cumJumps;
+		}
+	}
+
 	public class HPCState extends State {
 		public final Neighbours origNeighbours;
 		public final double[] meanTimes;
-		private final Neighbours lockedNeighbours; /* Prevent the soft
-							      reference to the
-							      neighbours array
-							      being freed */
+		/** Exit times by sink, or null to walk through the HPC. */
+		public final HPCExitTimes exitTimes;
+		private final Neighbours lockedNeighbours; /* Also pinned
+							      in the cache */
+		/* By index of the sink, built on first use. */
+		private final SinkTable[] sinkTables;
+
 		public HPCState(State orig, State[] ns, short[] os, double[] ps)
 		{
 			this(orig, ns, os, ps, null);
@@ -151,140 +324,251 @@ public abstract class StateSpace {
 
 		public HPCState(State orig, State[] ns, short[] os, double[] ps, double[] mt)
 		{
-			super(orig.state);
+			this(orig, ns, os, ps, mt, null);
+		}
+
+		public HPCState(State orig, State[] ns, short[] os, double[] ps, double[] mt, HPCExitTimes et)
+		{
+			super(orig);
 			Neighbours prevNs = orig.getNeighbours();
 			origNeighbours = new Neighbours(prevNs.neighbours, null, prevNs.probs, prevNs.exitRate);
+			pin();
 			lockedNeighbours = explored(this, ns, os, ps, prevNs.exitRate);
 			meanTimes = mt;
+			exitTimes = et;
+			sinkTables = new SinkTable[ns.length];
+		}
+
+		/**
+		 * The successor distribution for walks leaving this HPC
+		 * to the given sink, which is usually the neighbour with
+		 * index hint (all states of an HPC share their sinks).
+		 */
+		public SinkTable getSinkTable(State sink, int hint)
+		{
+			State[] ns = lockedNeighbours.neighbours;
+			int idx = hint;
+			if (idx < 0 || idx >= ns.length || ns[idx] != sink) {
+				for (idx = ns.length - 1; idx >= 0; idx--)
+					if (ns[idx] == sink)
+						break;
+				if (idx < 0)
+					return new SinkTable(this, sink);
+			}
+			/* The fields of a table are final, so it can be
+			 * shared without further synchronization. */
+			SinkTable ret = sinkTables[idx];
+			if (ret == null)
+				sinkTables[idx] = ret = new SinkTable(this, sink);
+			return ret;
 		}
 	}
 
-	private WeakHashMap<State, State> knownStates;
+	/* Interning table of all states, keyed by their vectors (look
+	 * up with a StateWrapper to avoid creating a State). Lookups
+	 * are lock-free, and insertions only lock a single bin.
+	 *
+	 * States are never evicted: the table used to be a WeakHashMap,
+	 * but as every state was also its own value, its entries could
+	 * not be collected either. HPC states must not be evicted in
+	 * any case, as they cannot be recreated by exploration.
+	 *
+	 * An HPC state replaces the original state as the value of its
+	 * entry (the key remains the original state, which is equal to
+	 * it), so lookups always see exactly one of the two.
+	 *
+	 * With packed or tree-compressed states, the arena takes the
+	 * place of this table (and it is null).
+	 */
+	private final ConcurrentHashMap<State, State> knownStates;
+	private final StateArena arena;
+	public final NeighbourCache neighbourCache;
+	/** Store the states of new state spaces in a packed arena
+	 * (if the model supports it). */
+	public static boolean usePackedStates = false;
+	/** Store the states of new state spaces tree-compressed. */
+	public static boolean useTreeStates = false;
 	private volatile State initialState;
 	public final double epsilon;
-	/* Locks are public since HPC removal needs synchronization
-	 * across multiple state updates.
-	 */
-	public Lock writeLock, readLock;
+	/* Serializes changes to the HPCs, which update multiple states. */
+	private final Object hpcLock = new Object();
 
 	public StateSpace(double epsilon, int[] initialState) {
+		this(epsilon, initialState, (StateStore)null);
+	}
+
+	/**
+	 * @param stateBits The number of bits needed for each element
+	 * of the state vectors, or null if unknown (see
+	 * LTS.stateBits()). States are packed if this is given and
+	 * usePackedStates is set.
+	 */
+	public StateSpace(double epsilon, int[] initialState, int[] stateBits) {
+		this(epsilon, initialState, defaultStore(initialState, stateBits));
+	}
+
+	private static StateStore defaultStore(int[] initialState,
+	                                       int[] stateBits)
+	{
+		if (useTreeStates)
+			return new TreeStateStore(initialState.length);
+		else if (usePackedStates && stateBits != null)
+			return new PackedStateStore(stateBits);
+		return null;
+	}
+
+	/**
+	 * @param store The store to keep the state vectors in (and
+	 * number the states by), or null to keep them in the states
+	 * themselves.
+	 */
+	protected StateSpace(double epsilon, int[] initialState, StateStore store) {
 		this.epsilon = epsilon;
-		knownStates = new WeakHashMap<>();
-		ReentrantReadWriteLock locks = new ReentrantReadWriteLock();
-		writeLock = locks.writeLock();
-		readLock = locks.readLock();
+		neighbourCache = new NeighbourCache();
+		if (store != null) {
+			arena = new StateArena(this, store);
+			knownStates = null;
+		} else {
+			arena = null;
+			knownStates = new ConcurrentHashMap<>();
+		}
 		this.initialState = findOrCreate(initialState);
 	}
 
 	/** Follows the behaviour of snapshot() */
 	protected StateSpace(StateSpace other) {
-		knownStates = new WeakHashMap<>(other.knownStates);
+		if (other.arena != null) {
+			/* The states refer to their own arena, so they
+			 * cannot be copied. */
+			arena = other.arena;
+			knownStates = null;
+		} else {
+			arena = null;
+			knownStates = new ConcurrentHashMap<>(other.knownStates);
+		}
 		epsilon = other.epsilon;
-		ReentrantReadWriteLock locks = new ReentrantReadWriteLock();
-		writeLock = locks.writeLock();
-		readLock = locks.readLock();
+		neighbourCache = other.neighbourCache;
 		initialState = other.initialState;
 	}
 
 	public int size() {
+		if (arena != null)
+			return arena.size();
 		return knownStates.size();
 	}
 
+	/** Whether the states are stored packed or tree-compressed. */
+	public boolean isPacked() {
+		return arena != null;
+	}
+
+	/* All current states (i.e., HPC states instead of the states
+	 * they replaced). With an arena, only the states for which
+	 * State objects exist are included: the others have no
+	 * neighbours or HPCs yet. */
+	private Iterable<State> allStates() {
+		if (arena == null)
+			return knownStates.values();
+		int n = arena.size();
+		ArrayList<State> ret = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			State s = arena.stateIfPresent(i);
+			if (s != null)
+				ret.add(s);
+		}
+		return ret;
+	}
+
+	/**
+	 * Make the neighbours of all states refer to the HPC states
+	 * that replaced their original states.
+	 */
 	public void cleanupHPCs()
 	{
-		StateWrapper w = cachedWrapper.get();
-		if (w == null) {
-			w = new StateWrapper(null);
-			cachedWrapper.set(w);
-		}
-		try {
-			writeLock.lock();
-			for (State s : knownStates.keySet()) {
-				Neighbours nbs = null;
-				if (s.neighbours != null)
-					nbs = s.neighbours.get();
+		synchronized(hpcLock) {
+			for (State s : allStates()) {
+				Neighbours nbs = s.neighbours;
 				if (nbs == null)
 					continue;
 				State[] arr = nbs.neighbours;
-				for (int i = 0; i < arr.length; i++) {
-					w.state = arr[i].state;
-					arr[i] = knownStates.get(w);
-				}
+				for (int i = 0; i < arr.length; i++)
+					arr[i] = find(arr[i]);
 				if (!(s instanceof HPCState))
 					continue;
 				nbs = ((HPCState)s).origNeighbours;
 				arr = nbs.neighbours;
-				for (int i = 0; i < arr.length; i++) {
-					w.state = arr[i].state;
-					arr[i] = knownStates.get(w);
-				}
+				for (int i = 0; i < arr.length; i++)
+					arr[i] = find(arr[i]);
 			}
-		} finally {
-			writeLock.unlock();
 		}
 	}
 
 	public HPCState addHPC(State orig, State[] newNeighbours,
 	                   short[] newOrders, double[] newProbs,
 			   double[] meanTimes)
+	{
+		return addHPC(orig, newNeighbours, newOrders, newProbs,
+		              meanTimes, null);
+	}
+
+	public HPCState addHPC(State orig, State[] newNeighbours,
+	                   short[] newOrders, double[] newProbs,
+			   double[] meanTimes, HPCExitTimes exitTimes)
 	{
 		if (orig instanceof HPCState)
 			return (HPCState) orig;
-		try {
-			writeLock.lock();
+		synchronized(hpcLock) {
 			HPCState n = new HPCState(orig, newNeighbours,
 			                          newOrders, newProbs,
-			                          meanTimes);
-			knownStates.remove(orig);
-			knownStates.put(n, n);
+			                          meanTimes, exitTimes);
+			if (arena != null)
+				arena.replace(orig.id, n);
+			else
+				knownStates.put(n, n);
+			neighbourCache.remove(orig);
 			if (orig == initialState)
 				initialState = n;
 			return n;
-		} finally {
-			writeLock.unlock();
 		}
 	}
 
 	private ThreadLocal<StateWrapper> cachedWrapper = new ThreadLocal<>();
 
 	public State find(int[] x) {
+		if (arena != null)
+			return arena.find(x);
 		StateWrapper w = cachedWrapper.get();
 		if (w == null) {
 			w = new StateWrapper(x);
 			cachedWrapper.set(w);
 		}
 		w.state = x;
-		try {
-			readLock.lock();
-			return knownStates.get(w);
-		} finally {
-			readLock.unlock();
-		}
+		return knownStates.get(w);
 	}
 
 	public State find(State x) {
-		try {
-			readLock.lock();
-			return knownStates.get(x);
-		} finally {
-			readLock.unlock();
+		if (arena != null) {
+			if (x.state == null && x.arena() == arena)
+				return arena.state(x.id);
+			return arena.find(x.getVector());
 		}
+		return knownStates.get(x);
+	}
+
+	/** The current state with the given number in the store. */
+	protected State state(int num) {
+		return arena.state(num);
 	}
 
 	protected State findOrCreate(int[] x) {
-		State s;
-		s = find(x);
-		if(s == null) {
-			try {
-				writeLock.lock();
-				s = find(x);
-				if (s == null) {
-					s = new State(x);
-					knownStates.put(s, s);
-				}
-			} finally {
-				writeLock.unlock();
-			}
+		if (arena != null)
+			return arena.findOrCreate(x);
+		State s = find(x);
+		if (s == null) {
+			State n = new State(x);
+			s = knownStates.putIfAbsent(n, n);
+			if (s == null)
+				s = n;
 		}
 		return s;
 	}
@@ -295,10 +579,121 @@ public abstract class StateSpace {
 	{
 		Neighbours ns = new Neighbours(neighbours, orders, probs,
 		                               exitRate);
-		s.neighbours = new SoftReference<Neighbours>(ns);
+		s.space().neighbourCache.add(s, ns);
 		return ns;
 	}
 
+	private static void writeVector(DataOutputStream out, int[] v)
+			throws IOException
+	{
+		out.writeInt(v.length);
+		for (int x : v)
+			out.writeInt(x);
+	}
+
+	private static int[] readVector(DataInputStream in) throws IOException
+	{
+		int[] ret = new int[in.readInt()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = in.readInt();
+		return ret;
+	}
+
+	/**
+	 * Write the HPCs of this state space and the given values of
+	 * states (e.g. an importance function), such that
+	 * readStateValues() can restore them in a fresh instance of the
+	 * same model without searching for them again.
+	 */
+	public void writeStateValues(DataOutputStream out,
+	                             Map<State, Double> values)
+			throws IOException
+	{
+		ArrayList<HPCState> hpcs = new ArrayList<>();
+		for (State s : allStates()) {
+			if (s instanceof HPCState)
+				hpcs.add((HPCState)s);
+		}
+		out.writeInt(hpcs.size());
+		for (HPCState h : hpcs) {
+			Neighbours nbs = h.getNeighbours();
+			writeVector(out, h.getVector());
+			out.writeInt(nbs.neighbours.length);
+			for (int i = 0; i < nbs.neighbours.length; i++) {
+				writeVector(out, nbs.neighbours[i].getVector());
+				out.writeShort(nbs.orders[i]);
+				out.writeDouble(nbs.probs[i]);
+			}
+			out.writeBoolean(h.meanTimes != null);
+			if (h.meanTimes != null) {
+				for (double t : h.meanTimes)
+					out.writeDouble(t);
+			}
+			HPCExitTimes et = h.exitTimes;
+			out.writeBoolean(et != null);
+			if (et != null) {
+				out.writeDouble(et.rate);
+				for (double[] cum : et.cumJumps) {
+					out.writeInt(cum.length);
+					for (double p : cum)
+						out.writeDouble(p);
+				}
+			}
+		}
+		out.writeInt(values.size());
+		for (Map.Entry<State, Double> e : values.entrySet()) {
+			writeVector(out, e.getKey().getVector());
+			out.writeDouble(e.getValue());
+		}
+	}
+
+	/** Restore HPCs and state values written by writeStateValues(). */
+	public HashMap<State, Double> readStateValues(DataInputStream in)
+			throws IOException
+	{
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			State orig = findOrCreate(readVector(in));
+			int m = in.readInt();
+			State[] ns = new State[m];
+			short[] orders = new short[m];
+			double[] probs = new double[m];
+			for (int j = 0; j < m; j++) {
+				ns[j] = findOrCreate(readVector(in));
+				orders[j] = in.readShort();
+				probs[j] = in.readDouble();
+			}
+			double[] meanTimes = null;
+			if (in.readBoolean()) {
+				meanTimes = new double[m];
+				for (int j = 0; j < m; j++)
+					meanTimes[j] = in.readDouble();
+			}
+			HPCExitTimes exitTimes = null;
+			if (in.readBoolean()) {
+				double rate = in.readDouble();
+				double[][] cumJumps = new double[m][];
+				for (int j = 0; j < m; j++) {
+					cumJumps[j] = new double[in.readInt()];
+					for (int k = 0; k < cumJumps[j].length; k++)
+						cumJumps[j][k] = in.readDouble();
+				}
+				exitTimes = new HPCExitTimes(rate, cumJumps);
+			}
+			addHPC(orig, ns, orders, probs, meanTimes, exitTimes);
+		}
+		/* Neighbours may refer to states that were replaced by
+		 * HPCs later on. */
+		cleanupHPCs();
+		n = in.readInt();
+		HashMap<State, Double> ret = new HashMap<>();
+		for (int i = 0; i < n; i++) {
+			State s = findOrCreate(readVector(in));
+			ret.put(s, in.readDouble());
+		}
+		return ret;
+	}
+
 	public State getInitialState()
 	{
 		return initialState;
@@ -312,10 +707,21 @@ public abstract class StateSpace {
 	protected abstract Neighbours findNeighbours(State x);
 
 	public String stateString(State state) {
-		return Arrays.toString(state.state);
+		return Arrays.toString(state.getVector());
 	}
 
 	public Number getVarValue(String variable, State state) {
 		return null;
 	}
+
+	/**
+	 * Whether the condition holds in the given state, if this
+	 * state space knows so without evaluating it (e.g., for the
+	 * targets of properties computed in advance).
+	 *
+	 * @return The value of the condition, or null if unknown.
+	 */
+	public Boolean knownCondition(Expression cond, State state) {
+		return null;
+	}
 }
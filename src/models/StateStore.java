@@ -0,0 +1,38 @@
+package models;
+
+/**
+ * Compact storage of state vectors of a fixed length, numbering the
+ * distinct vectors consecutively from 0 in order of insertion.
+ *
+ * Implementations must be safe for concurrent use.
+ */
+public interface StateStore
+{
+	/** @return The number of the given vector, or -1 if absent. */
+	public int find(int[] vec);
+
+	/** @return The number of the given vector, which is added if
+	 * necessary (getting number size() - 1). */
+	public int findOrAdd(int[] vec);
+
+	/** Copy the vector with the given number into out. */
+	public void get(int num, int[] out);
+
+	/** @return The number of stored vectors. */
+	public int size();
+
+	/** @return The length of the stored vectors. */
+	public int length();
+
+	/** @return The approximate number of bytes in use. */
+	public long bytesUsed();
+
+	/** @return A new array holding the vector with the given
+	 * number. */
+	public default int[] get(int num)
+	{
+		int[] ret = new int[length()];
+		get(num, ret);
+		return ret;
+	}
+}
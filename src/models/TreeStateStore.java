@@ -0,0 +1,147 @@
+package models;
+
+/**
+ * State store using tree compression (as in LTSmin, see Blom, Lisser,
+ * van de Pol and Weber, "A database approach to distributed state
+ * space generation", 2009).
+ *
+ * A vector is split into halves recursively, and every pair of halves
+ * is interned as a node of two ints, so that states sharing parts of
+ * their vectors share the nodes for those parts. A state itself is a
+ * single root node, and most of the states of a composition differ
+ * from an earlier one in only a few elements, so adding a state
+ * usually adds only a few nodes: the memory per state is nearly
+ * independent of the length of the vectors.
+ */
+public final class TreeStateStore implements StateStore
+{
+	/* Result of encode() for parts that are not in the store. */
+	private static final long ABSENT = Long.MIN_VALUE;
+
+	private final int length;
+	/* Interior nodes, shared between all positions in the tree. */
+	private final KeyTable nodes;
+	/* Root nodes, numbered as the states. */
+	private final KeyTable roots;
+	private final ThreadLocal<long[]> probe;
+
+	public TreeStateStore(int length)
+	{
+		this.length = length;
+		nodes = new KeyTable(1);
+		roots = new KeyTable(1);
+		probe = ThreadLocal.withInitial(() -> new long[1]);
+	}
+
+	public int size()
+	{
+		return roots.size();
+	}
+
+	public int length()
+	{
+		return length;
+	}
+
+	public long bytesUsed()
+	{
+		return nodes.bytesUsed() + roots.bytesUsed();
+	}
+
+	private static long pair(long left, long right)
+	{
+		return (left << 32) | (right & 0xffffffffL);
+	}
+
+	/* The first element of the right half of [lo, hi) */
+	private static int split(int lo, int hi)
+	{
+		return (lo + hi + 1) >>> 1;
+	}
+
+	/**
+	 * The encoding of vec[lo, hi): the element itself for a single
+	 * element, otherwise the id of the node of its halves.
+	 *
+	 * @return The encoding, or ABSENT if it is not in the store
+	 * and add is false.
+	 */
+	private long encode(int[] vec, int lo, int hi, long[] key, boolean add)
+	{
+		if (hi - lo == 1)
+			return vec[lo];
+		int mid = split(lo, hi);
+		long left = encode(vec, lo, mid, key, add);
+		if (left == ABSENT)
+			return ABSENT;
+		long right = encode(vec, mid, hi, key, add);
+		if (right == ABSENT)
+			return ABSENT;
+		key[0] = pair(left, right);
+		int id = add ? nodes.findOrAdd(key) : nodes.find(key);
+		return id < 0 ? ABSENT : id;
+	}
+
+	private void decode(int enc, int lo, int hi, int[] out)
+	{
+		if (hi - lo == 1) {
+			out[lo] = enc;
+			return;
+		}
+		long node = nodes.get(enc, 0);
+		int mid = split(lo, hi);
+		decode((int)(node >>> 32), lo, mid, out);
+		decode((int)node, mid, hi, out);
+	}
+
+	/* Sets key[0] to the root node of vec, returns false if it is
+	 * not in the store and add is false. */
+	private boolean root(int[] vec, long[] key, boolean add)
+	{
+		if (vec.length != length)
+			throw new IllegalArgumentException("State vector of length " + vec.length + ", expected " + length);
+		long left = 0, right = 0;
+		if (length == 1) {
+			left = vec[0];
+		} else if (length > 1) {
+			int mid = split(0, length);
+			left = encode(vec, 0, mid, key, add);
+			if (left == ABSENT)
+				return false;
+			right = encode(vec, mid, length, key, add);
+			if (right == ABSENT)
+				return false;
+		}
+		key[0] = pair(left, right);
+		return true;
+	}
+
+	public int find(int[] vec)
+	{
+		long[] key = probe.get();
+		if (!root(vec, key, false))
+			return -1;
+		return roots.find(key);
+	}
+
+	public int findOrAdd(int[] vec)
+	{
+		long[] key = probe.get();
+		root(vec, key, true);
+		return roots.findOrAdd(key);
+	}
+
+	public void get(int num, int[] out)
+	{
+		if (length == 0)
+			return;
+		long node = roots.get(num, 0);
+		if (length == 1) {
+			out[0] = (int)(node >>> 32);
+			return;
+		}
+		int mid = split(0, length);
+		decode((int)(node >>> 32), 0, mid, out);
+		decode((int)node, mid, length, out);
+	}
+}
@@ -1,6 +1,78 @@
 package nl.ennoruijters.interval;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Source of random numbers for use in hot loops.
+ *
+ * Unlike java.util.Random, implementations need not be thread-safe,
+ * produce 64 bits per step, and can fill whole blocks at once. The
+ * generators in this package also extend Random for compatibility,
+ * and other instances of Random can be used through of().
+ */
 public interface RandomSource
 {
 	public int randInt();
+
+	public long randLong();
+
+	/** Uniformly distributed in [0, 1). */
+	public default double randDouble()
+	{
+		return (randLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/** Fill buf[off] to buf[off + len - 1] using randLong(). */
+	public default void fill(long[] buf, int off, int len)
+	{
+		for (int i = off; i < off + len; i++)
+			buf[i] = randLong();
+	}
+
+	/** Fill buf[off] to buf[off + len - 1] using randDouble(). */
+	public default void fill(double[] buf, int off, int len)
+	{
+		for (int i = off; i < off + len; i++)
+			buf[i] = randDouble();
+	}
+
+	/** Reads the entire state of the RNG from the stream */
+	public default void readState(DataInputStream stream)
+			throws IOException
+	{
+		throw new UnsupportedOperationException("Unable to restore the state of the RNG.");
+	}
+
+	/** Writes the entire state of the RNG to the stream */
+	public default void writeState(DataOutputStream stream)
+			throws IOException
+	{
+		throw new UnsupportedOperationException("Unable to store the state of the RNG.");
+	}
+
+	/**
+	 * The given generator as a RandomSource: either itself, or a
+	 * view forwarding to its methods.
+	 */
+	public static RandomSource of(Random rng)
+	{
+		if (rng instanceof RandomSource)
+			return (RandomSource)rng;
+		return new RandomSource() {
+			public int randInt() {
+				return rng.nextInt();
+			}
+
+			public long randLong() {
+				return rng.nextLong();
+			}
+
+			public double randDouble() {
+				return rng.nextDouble();
+			}
+		};
+	}
 }
@@ -1,9 +1,14 @@
 package nl.ennoruijters.interval;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Random;
+import java.util.random.RandomGenerator;
 import java.security.SecureRandom;
 
-public class XoroShiro128RandomSource extends Random implements RandomSource
+public class XoroShiro128RandomSource extends Random
+		implements RandomSource, RandomGenerator.LeapableGenerator
 {
 	private static final long serialVersionUID = 1;
 	long s0, s1;
@@ -64,10 +69,9 @@ public class XoroShiro128RandomSource extends Random implements RandomSource
 		return randInt() >>> (32 - bits);
 	}
 
-	public double nextDouble()
+	public double randDouble()
 	{
 		long ret = s0 + s1;
-		int iret;
 		s1 ^= s0;
 		s0 = ((s0 << 55) | (s0 >>> 9));
 		s0 = s0 ^ s1 ^ (s1 << 14);
@@ -76,6 +80,40 @@ public class XoroShiro128RandomSource extends Random implements RandomSource
 		return ret * (0.5 / (1L << 62));
 	}
 
+	public double nextDouble()
+	{
+		return randDouble();
+	}
+
+	public void fill(long[] buf, int off, int len)
+	{
+		long s0 = this.s0, s1 = this.s1;
+		for (int i = off; i < off + len; i++) {
+			buf[i] = s0 + s1;
+			s1 ^= s0;
+			s0 = ((s0 << 55) | (s0 >>> 9));
+			s0 ^= s1 ^ (s1 << 14);
+			s1 = (s1 << 36) | (s1 >>> 28);
+		}
+		this.s0 = s0;
+		this.s1 = s1;
+	}
+
+	public void fill(double[] buf, int off, int len)
+	{
+		long s0 = this.s0, s1 = this.s1;
+		for (int i = off; i < off + len; i++) {
+			long r = (s0 + s1) & Long.MAX_VALUE;
+			buf[i] = r * (0.5 / (1L << 62));
+			s1 ^= s0;
+			s0 = ((s0 << 55) | (s0 >>> 9));
+			s0 ^= s1 ^ (s1 << 14);
+			s1 = (s1 << 36) | (s1 >>> 28);
+		}
+		this.s0 = s0;
+		this.s1 = s1;
+	}
+
 	private int jumps;
 	private XoroShiro128RandomSource(long seed0, long seed1, int jumps)
 	{
@@ -84,31 +122,41 @@ public class XoroShiro128RandomSource extends Random implements RandomSource
 		this.jumps = jumps;
 	}
 
-	private static final long LONG_JUMP_1 = 0xd2a98b26625eee7bL;
-	private static final long LONG_JUMP_2 = 0xdddf9b1090aa7ac1L;
-	public XoroShiro128RandomSource long_jump()
+	/** Reads the entire state of the RNG from the stream */
+	public void readState(DataInputStream stream) throws IOException
+	{
+		s0 = stream.readLong();
+		s1 = stream.readLong();
+		jumps = stream.readInt();
+	}
+
+	/** Writes the entire state of the RNG to the stream */
+	public void writeState(DataOutputStream stream) throws IOException
+	{
+		stream.writeLong(s0);
+		stream.writeLong(s1);
+		stream.writeInt(jumps);
+	}
+
+	private static final long JUMP_1 = 0xbeac0467eba5facbL;
+	private static final long JUMP_2 = 0xd86b048b86aa9922L;
+	private static final long LONG_JUMP_1 = 0x18f7c399ccebda8dL;
+	private static final long LONG_JUMP_2 = 0xf2deac28bef3bb07L;
+
+	/* Advance the state by the jump polynomial given by j1, j2. */
+	private void jump(long j1, long j2)
 	{
-		if (jumps == Integer.MAX_VALUE)
-			throw new UnsupportedOperationException("Can only sub-RNG once.");
-		XoroShiro128RandomSource ret;
-		ret = new XoroShiro128RandomSource(s0, s1, Integer.MAX_VALUE);
-		jumps++;
-		/* This is the long-jump function for the generator. It
-		 * is equivalent to 2^96 calls to randInt(); it can be
-		 * used to generate 2^32 non-overlapping subsequences
-		 * for parallel computations.
-		 */
 		long t0 = 0;
 		long t1 = 0;
 		for(int b = 0; b < 64; b++) {
-			if ((LONG_JUMP_1 & (1L << b)) != 0) {
+			if ((j1 & (1L << b)) != 0) {
 				t0 ^= s0;
 				t1 ^= s1;
 			}
 			randLong();
 		}
 		for(int b = 0; b < 64; b++) {
-			if ((LONG_JUMP_2 & (1L << b)) != 0) {
+			if ((j2 & (1L << b)) != 0) {
 				t0 ^= s0;
 				t1 ^= s1;
 			}
@@ -116,6 +164,55 @@ public class XoroShiro128RandomSource extends Random implements RandomSource
 		}
 		s0 = t0;
 		s1 = t1;
+	}
+
+	public XoroShiro128RandomSource long_jump()
+	{
+		if (jumps == Integer.MAX_VALUE)
+			throw new UnsupportedOperationException("Can only sub-RNG once.");
+		XoroShiro128RandomSource ret;
+		ret = new XoroShiro128RandomSource(s0, s1, Integer.MAX_VALUE);
+		jumps++;
+		/* This is the long-jump function for the generator. It
+		 * is equivalent to 2^96 calls to randInt(); it can be
+		 * used to generate 2^32 non-overlapping subsequences
+		 * for parallel computations.
+		 */
+		jump(LONG_JUMP_1, LONG_JUMP_2);
 		return ret;
 	}
+
+	/* Interoperability with java.util.random */
+
+	public XoroShiro128RandomSource copy()
+	{
+		return new XoroShiro128RandomSource(s0, s1, jumps);
+	}
+
+	/** Equivalent to 2^64 calls to randInt(). */
+	public void jump()
+	{
+		jump(JUMP_1, JUMP_2);
+	}
+
+	public double jumpDistance()
+	{
+		return 0x1p64;
+	}
+
+	/** Equivalent to 2^96 calls to randInt(). */
+	public void leap()
+	{
+		jump(LONG_JUMP_1, LONG_JUMP_2);
+	}
+
+	public double leapDistance()
+	{
+		return 0x1p96;
+	}
+
+	public XoroShiro128RandomSource copyAndLeap()
+	{
+		return long_jump();
+	}
 }
@@ -0,0 +1,217 @@
+package nl.ennoruijters.interval;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.random.RandomGenerator;
+import java.security.SecureRandom;
+
+/**
+ * The xoshiro256++ generator of Blackman and Vigna: a period of
+ * 2^256 - 1, and jumps of 2^128 and 2^192 steps.
+ */
+public class Xoshiro256PlusPlusRandomSource extends Random
+		implements RandomSource, RandomGenerator.LeapableGenerator
+{
+	private static final long serialVersionUID = 1;
+	long s0, s1, s2, s3;
+
+	public Xoshiro256PlusPlusRandomSource()
+	{
+		byte[] seed = SecureRandom.getSeed(32);
+		long[] s = new long[4];
+		for (int i = 0; i < 32; i++)
+			s[i / 8] = (s[i / 8] << 8) | (seed[i] & 0xff);
+		s0 = s[0];
+		s1 = s[1];
+		s2 = s[2];
+		s3 = s[3];
+		if ((s0 | s1 | s2 | s3) == 0)
+			s0 = 1;
+	}
+
+	public Xoshiro256PlusPlusRandomSource(long seed)
+	{
+		setSeed(seed);
+	}
+
+	private Xoshiro256PlusPlusRandomSource(long s0, long s1, long s2,
+	                                       long s3)
+	{
+		this.s0 = s0;
+		this.s1 = s1;
+		this.s2 = s2;
+		this.s3 = s3;
+	}
+
+	private static long splitMix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	public void setSeed(long seed)
+	{
+		/* SplitMix64 generator to fill the initial state */
+		s0 = splitMix(seed += 0x9e3779b97f4a7c15L);
+		s1 = splitMix(seed += 0x9e3779b97f4a7c15L);
+		s2 = splitMix(seed += 0x9e3779b97f4a7c15L);
+		s3 = splitMix(seed += 0x9e3779b97f4a7c15L);
+	}
+
+	public long randLong()
+	{
+		long ret = Long.rotateLeft(s0 + s3, 23) + s0;
+		long t = s1 << 17;
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		s2 ^= t;
+		s3 = Long.rotateLeft(s3, 45);
+		return ret;
+	}
+
+	public int randInt()
+	{
+		return (int)(randLong() >>> 32);
+	}
+
+	protected int next(int bits)
+	{
+		return (int)(randLong() >>> (64 - bits));
+	}
+
+	public long nextLong()
+	{
+		return randLong();
+	}
+
+	public double nextDouble()
+	{
+		return randDouble();
+	}
+
+	public void fill(long[] buf, int off, int len)
+	{
+		long s0 = this.s0, s1 = this.s1, s2 = this.s2, s3 = this.s3;
+		for (int i = off; i < off + len; i++) {
+			buf[i] = Long.rotateLeft(s0 + s3, 23) + s0;
+			long t = s1 << 17;
+			s2 ^= s0;
+			s3 ^= s1;
+			s1 ^= s2;
+			s0 ^= s3;
+			s2 ^= t;
+			s3 = Long.rotateLeft(s3, 45);
+		}
+		this.s0 = s0;
+		this.s1 = s1;
+		this.s2 = s2;
+		this.s3 = s3;
+	}
+
+	public void fill(double[] buf, int off, int len)
+	{
+		long s0 = this.s0, s1 = this.s1, s2 = this.s2, s3 = this.s3;
+		for (int i = off; i < off + len; i++) {
+			long r = Long.rotateLeft(s0 + s3, 23) + s0;
+			buf[i] = (r >>> 11) * 0x1.0p-53;
+			long t = s1 << 17;
+			s2 ^= s0;
+			s3 ^= s1;
+			s1 ^= s2;
+			s0 ^= s3;
+			s2 ^= t;
+			s3 = Long.rotateLeft(s3, 45);
+		}
+		this.s0 = s0;
+		this.s1 = s1;
+		this.s2 = s2;
+		this.s3 = s3;
+	}
+
+	/** Reads the entire state of the RNG from the stream */
+	public void readState(DataInputStream stream) throws IOException
+	{
+		s0 = stream.readLong();
+		s1 = stream.readLong();
+		s2 = stream.readLong();
+		s3 = stream.readLong();
+	}
+
+	/** Writes the entire state of the RNG to the stream */
+	public void writeState(DataOutputStream stream) throws IOException
+	{
+		stream.writeLong(s0);
+		stream.writeLong(s1);
+		stream.writeLong(s2);
+		stream.writeLong(s3);
+	}
+
+	private static final long[] JUMP = {
+		0x180ec6d33cfd0abaL, 0xd5a61266f0c9392cL,
+		0xa9582618e03fc9aaL, 0x39abdc4529b1661cL
+	};
+	private static final long[] LONG_JUMP = {
+		0x76e15d3efefdcbbfL, 0xc5004e441c522fb3L,
+		0x77710069854ee241L, 0x39109bb02acbe635L
+	};
+
+	/* Advance the state by the given jump polynomial. */
+	private void jump(long[] poly)
+	{
+		long t0 = 0, t1 = 0, t2 = 0, t3 = 0;
+		for (long p : poly) {
+			for (int b = 0; b < 64; b++) {
+				if ((p & (1L << b)) != 0) {
+					t0 ^= s0;
+					t1 ^= s1;
+					t2 ^= s2;
+					t3 ^= s3;
+				}
+				randLong();
+			}
+		}
+		s0 = t0;
+		s1 = t1;
+		s2 = t2;
+		s3 = t3;
+	}
+
+	public Xoshiro256PlusPlusRandomSource copy()
+	{
+		return new Xoshiro256PlusPlusRandomSource(s0, s1, s2, s3);
+	}
+
+	/** Equivalent to 2^128 calls to randLong(). */
+	public void jump()
+	{
+		jump(JUMP);
+	}
+
+	public double jumpDistance()
+	{
+		return 0x1p128;
+	}
+
+	/** Equivalent to 2^192 calls to randLong(). */
+	public void leap()
+	{
+		jump(LONG_JUMP);
+	}
+
+	public double leapDistance()
+	{
+		return 0x1p192;
+	}
+
+	public Xoshiro256PlusPlusRandomSource copyAndLeap()
+	{
+		Xoshiro256PlusPlusRandomSource ret = copy();
+		leap();
+		return ret;
+	}
+}
@@ -10,7 +10,6 @@ import java.math.BigDecimal;
 import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.ArrayDeque;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Comparator;
@@ -29,6 +28,7 @@ import java.util.function.IntConsumer;
 
 import nl.utwente.ewi.fmt.EXPRES.expression.ConstantExpression;
 import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
+import models.TreeStateStore;
 
 public class Automaton implements LTS {
 	/** The initial state of the automaton */
@@ -99,21 +99,22 @@ public class Automaton implements LTS {
 	                 long maxMem)
 		throws ModelTooLargeException
 	{
-		HashMap<LTS.StateWrapperLike, Integer> states = new HashMap<>();
-		ArrayDeque<LTS.StateWrapperLike> queue = new ArrayDeque<>();
-		queue.add(new LTS.StateWrapper(system.getInitialState()));
-		int[] stateHint = new int[system.stateSize()];
-		states.put(queue.getFirst(), 0);
+		/* States are numbered in order of discovery, so the
+		 * states still to be explored are exactly those with
+		 * numbers from num upwards. */
+		TreeStateStore states = new TreeStateStore(system.stateSize());
+		states.findOrAdd(system.getInitialState());
+		int[] state = new int[system.stateSize()];
 		targets = new int[1][];
 		labels = new String[1][];
 		assignments = createAssignmentArray(1);
 		boolean anyHasAssignments = false;
-		long memUsed = 0;
+		long memUsed = 0, storeMem = 0;
 		if (DEBUG && internal != null)
 			System.err.println("Internal actions: " + internal);
 		if (DEBUG && permitted != null)
 			System.err.println("Permitted actions: " + permitted);
-		while (!queue.isEmpty()) {
+		for (int num = 0; num < states.size(); num++) {
 			if (targets.length < states.size()) {
 				int n = states.size();
 				if (n > Integer.MAX_VALUE / 2)
@@ -124,9 +125,7 @@ public class Automaton implements LTS {
 				labels = Arrays.copyOf(labels, n);
 				assignments = Arrays.copyOf(assignments, n);
 			}
-			LTS.StateWrapperLike cur = queue.poll();
-			int[] state = cur.getState(stateHint);
-			int num = states.get(cur);
+			states.get(num, state);
 			Collection<LTS.Transition> ts;
 			try {
 				ts = system.getTransitions(state);
@@ -134,7 +133,7 @@ public class Automaton implements LTS {
 				throw new UnsupportedOperationException(e);
 			}
 			if (internal != null)
-				ts = cleanupInternal(ts, cur, internal, maxProg);
+				ts = cleanupInternal(ts, new LTS.StateWrapper(state), internal, maxProg);
 			targets[num] = new int[ts.size()];
 			labels[num] = new String[ts.size()];
 			assignments[num] = Arrays.copyOf(assignments[0], ts.size());
@@ -149,17 +148,7 @@ public class Automaton implements LTS {
 				}
 				if (t.label.equals("r0"))
 					continue;
-				LTS.StateWrapper tgt = new LTS.StateWrapper(t.target);
-				Integer tgtNum = states.get(tgt);
-				if (tgtNum == null) {
-					LTS.StateWrapperLike wrap = tgt.tryReduce();
-					tgtNum = states.size();
-					states.put(wrap, tgtNum);
-					queue.add(wrap);
-					memUsed += 120; /* Conservative estimate of states entry header size */
-					memUsed += stateHint.length * 4;
-				}
-				targets[num][i] = tgtNum;
+				targets[num][i] = states.findOrAdd(t.target);
 				labels[num][i] = t.label;
 				Expression guard = t.guard;
 				try {
@@ -197,7 +186,9 @@ public class Automaton implements LTS {
 			memUsed += 48; /* Two array headers, 24 bytes each */
 			memUsed += 16; /* Two references to the new arrays */
 			memUsed += i * (8 + 4); /* 8 per label, 4 per target */
-			if (memUsed > maxMem)
+			if ((num & 1023) == 0)
+				storeMem = states.bytesUsed();
+			if (memUsed + storeMem > maxMem)
 				throw new ModelTooLargeException();
 		}
 		targets = Arrays.copyOf(targets, states.size());
@@ -1274,6 +1274,36 @@ public class Composition implements MarkableLTS
 		return size;
 	}
 
+	private static int bits(int max)
+	{
+		return 32 - Integer.numberOfLeadingZeros(max);
+	}
+
+	public int[] stateBits()
+	{
+		int[] ret = new int[stateSize()];
+		for (int i = 0; i < automata.length; i++)
+			ret[i] = bits(automata[i].getNumStates() - 1);
+		if (globalVars.isEmpty()) {
+			int b = 0;
+			if (markLabels != null) {
+				for (int m : markLabels.values())
+					b = Math.max(b, m < 0 ? 32 : bits(m));
+			}
+			ret[automata.length] = b;
+			return ret;
+		}
+		for (int[] vData : globalVars.values()) {
+			int word = vData[0] / 32 + automata.length;
+			int b = vData[1] / 32 == vData[0] / 32
+			        ? vData[1] % 32 + 1 : 32;
+			ret[word] = Math.max(ret[word], b);
+			if (b == 32)
+				ret[vData[1] / 32 + automata.length] = 32;
+		}
+		return ret;
+	}
+
 	public Map<String, Integer> getVarValues(int[] state)
 	{
 		if (globalVars.isEmpty())
@@ -571,6 +571,18 @@ public interface LTS
 	public Map<String, Integer> getVarValues(int[] state);
 	public int getVarValue(String var, int[] state);
 	public int stateSize();
+
+	/**
+	 * The number of bits needed to store each element of the
+	 * state vectors of this LTS, assuming elements with fewer than
+	 * 32 bits are nonnegative.
+	 *
+	 * @return The numbers of bits, or null if they are not known.
+	 */
+	public default int[] stateBits()
+	{
+		return null;
+	}
 	public static StateWrapperLike wrapUncomparable(final int[] state)
 	{
 		for (int i = state.length - 1; i >= 0; i--) {
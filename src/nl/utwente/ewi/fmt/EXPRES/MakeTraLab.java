@@ -9,6 +9,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import algorithms.Simulator;
+import models.StateStore;
+import models.TreeStateStore;
 import nl.utwente.ewi.fmt.EXPRES.expression.ConstantExpression;
 
 public class MakeTraLab {
@@ -51,7 +53,6 @@ public class MakeTraLab {
 		public final int[] state;
 		public final String label;
 		public Set<LTS.Transition> transitions;
-		public String stateString;
 		public Set<String> markings;
 		public NondeterminismException explorationError;
 
@@ -78,7 +79,6 @@ public class MakeTraLab {
 			}
 			while (s.state != null) {
 				int[] state = s.state;
-				String sState = Composition.stateString(state);
 				Map<String, Integer> vals = l.getVarValues(state);
 				Set<String> markings = new TreeSet<>();
 				for (Map.Entry<String, Integer> v : vals.entrySet()) {
@@ -116,7 +116,6 @@ public class MakeTraLab {
 					}
 					synchronized(s) {
 						s.transitions = t;
-						s.stateString = sState;
 						s.markings = markings;
 						s.notifyAll();
 					}
@@ -283,7 +282,7 @@ public class MakeTraLab {
 
 	private void exploreStates() throws NondeterminismException
 	{
-		TreeMap<String, Integer> stateNums = new TreeMap<>();
+		TreeStateStore stateNums = new TreeStateStore(l.stateSize());
 		LinkedBlockingDeque<StateToExplore> toExplore;
 		toExplore = new LinkedBlockingDeque<>();
 		Explorer[] threads = new Explorer[Simulator.coresToUse];
@@ -314,7 +313,7 @@ public class MakeTraLab {
 		}
 	}
 
-	private Integer exploreStates(Map<String, Integer> stateNums,
+	private Integer exploreStates(StateStore stateNums,
 	                              StateToExplore state, Explorer explorer)
 		throws NondeterminismException
 
@@ -332,16 +331,12 @@ public class MakeTraLab {
 
 		if (state.explorationError != null)
 			throw state.explorationError;
-		String sState = state.stateString;
-		Integer stateNum = stateNums.get(sState);
-		if (stateNum != null)
+		int count = stateNums.size();
+		int stateNum = stateNums.findOrAdd(state.state);
+		if (stateNum < count)
 			return stateNum;
-		if (stateNums.size() > 0 && (stateNums.size() & 32767) == 0) {
-			System.err.format("Processed %d states\n",
-					stateNums.size());
-		}
-		stateNum = stateNums.size();
-		stateNums.put(sState, stateNum);
+		if (count > 0 && (count & 32767) == 0)
+			System.err.format("Processed %d states\n", count);
 		markings.add(state.markings);
 
 		StateToExplore next[];
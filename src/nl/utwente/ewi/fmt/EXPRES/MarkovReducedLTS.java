@@ -254,4 +254,9 @@ public class MarkovReducedLTS implements LTS
 	{
 		return initialState.length;
 	}
+
+	public int[] stateBits()
+	{
+		return original.stateBits();
+	}
 }
@@ -142,6 +142,7 @@ public class MarkovianComposition implements LTS
 	}
 
 	@Override public int stateSize() { return original.stateSize(); }
+	@Override public int[] stateBits() { return original.stateBits(); }
 	@Override public int getVarValue(String v, int[] s) {
 		return original.getVarValue(v, s);
 	}
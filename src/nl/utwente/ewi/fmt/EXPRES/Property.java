@@ -83,6 +83,15 @@ public class Property implements Comparable<Property>
 		return e1.toString().compareTo(e2.toString());
 	}
 
+	/** Whether both properties have the same type and targets,
+	 * differing at most in their time bounds and rewards. */
+	public boolean sameTargets(Property other)
+	{
+		return this.type == other.type
+			&& compareExprs(this.reachTarget, other.reachTarget) == 0
+			&& compareExprs(this.avoidTarget, other.avoidTarget) == 0;
+	}
+
 	public int compareTo(Property other)
 	{
 		int ret;
@@ -173,6 +182,9 @@ public class Property implements Comparable<Property>
 	{
 		if (reachTarget == null)
 			return false;
+		Boolean known = ss.knownCondition(reachTarget, state);
+		if (known != null)
+			return known;
 		Number n = reachTarget.evaluate(ss, state);
 		if (n instanceof Integer || n instanceof Long)
 			return n.longValue() != 0;
@@ -183,6 +195,9 @@ public class Property implements Comparable<Property>
 	{
 		if (type != Type.STEADY_STATE) {
 			if (avoidTarget != null) {
+				Boolean known = ss.knownCondition(avoidTarget, state);
+				if (known != null)
+					return known;
 				Number n = avoidTarget.evaluate(ss, state);
 				if (n instanceof Integer || n instanceof Long)
 					return n.longValue() != 0;
@@ -766,6 +766,15 @@ public class SymbolicAutomaton implements LTS {
 		return variables.length;
 	}
 
+	/** The variables are unbounded, so only the location is packed. */
+	public int[] stateBits()
+	{
+		int[] ret = new int[variables.length];
+		Arrays.fill(ret, 32);
+		ret[0] = 32 - Integer.numberOfLeadingZeros(labels.length - 1);
+		return ret;
+	}
+
 	public String toString()
 	{
 		StringBuilder ret = new StringBuilder();
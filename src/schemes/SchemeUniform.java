@@ -28,6 +28,7 @@ public class SchemeUniform extends Scheme {
 		if (myStateWeights.length < probs.length)
 			myStateWeights = new double[probs.length];
 		stateWeightsIS = myStateWeights;
+		cumWeightsIS = null;
 		totalStateWeightIS = 1;
 		for(int i=0;i<probs.length;i++)
 			stateWeightsIS[i] = 1.0 / probs.length;
@@ -66,6 +66,7 @@ public class SchemeZVAd extends Scheme {
 		if (myStateWeights.length < probs.length)
 			myStateWeights = new double[probs.length];
 		stateWeightsIS = myStateWeights;
+		cumWeightsIS = null;
 		totalStateWeightIS = 0;
 		for(int i=0;i<probs.length;i++) {
 			stateWeightsIS[i] = probs[i]*Math.pow(model.epsilon, info.get(neighbours[i]).d);
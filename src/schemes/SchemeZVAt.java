@@ -13,10 +13,10 @@ import nl.utwente.ewi.fmt.EXPRES.Property;
  */
 public class SchemeZVAt extends Scheme {
 	private static class StateInfo {
-		/* The Neighbours needs to be kept in here to prevent
-		 * garbage collection of this data in the actual state,
-		 * which could lead to re-ordering of the neighbours
-		 * when it is recreated.
+		/* The state is pinned in the neighbour cache, as
+		 * recreating its neighbours could re-order them. The
+		 * Neighbours are kept in here as well to avoid the
+		 * lookup.
 		 */
 		public final Neighbours nbs;
 		public final double[] weights;
@@ -60,6 +60,7 @@ public class SchemeZVAt extends Scheme {
 			s = model.find(s);
 			if (v.get(s) == 1)
 				continue; /* Out of lambda */
+			s.pin();
 			Neighbours nb = s.getNeighbours();
 			State neighbours[] = nb.neighbours;
 			if (neighbours.length == 0)
@@ -88,6 +89,7 @@ public class SchemeZVAt extends Scheme {
 		StateInfo si = info.get(state);
 		if (si != null) {
 			double[] weights = stateWeightsIS = stateWeightArray;
+			cumWeightsIS = null;
 			if (ret != si.nbs) {
 				System.err.println(state.getClass());
 				throw new AssertionError("Different neighbours");
@@ -5,6 +5,14 @@ import algorithms.SearchAlgorithm;
 import models.StateSpace;
 import models.StateSpace.Neighbours;
 import models.StateSpace.State;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Random;
 import nl.utwente.ewi.fmt.EXPRES.Property;
@@ -13,18 +21,20 @@ import nl.utwente.ewi.fmt.EXPRES.Property;
 
 public class SchemeZVAv extends Scheme {
 	private static class StateInfo {
-		/* The Neighbours needs to be kept in here to prevent
-		 * garbage collection of this data in the actual state,
-		 * which could lead to re-ordering of the neighbours
-		 * when it is recreated.
+		/* The state is pinned in the neighbour cache, as
+		 * recreating its neighbours could re-order them. The
+		 * Neighbours are kept in here as well to avoid the
+		 * lookup.
 		 */
 		public final Neighbours nbs;
 		public final double[] weightsIS;
+		public final double[] cumWeightsIS;
 		public final double weightSum;
 		public StateInfo(Neighbours nbs, double[] weights, double sum)
 		{
 			this.nbs = nbs;
 			weightsIS = weights;
+			cumWeightsIS = Neighbours.cumulative(weights);
 			weightSum = sum;
 		}
 	}
@@ -43,11 +53,92 @@ public class SchemeZVAv extends Scheme {
 
 	public static SchemeZVAv instantiate(StateSpace model, Property prop)
 	{
-		HashMap<State, StateInfo> info = new HashMap<>();
 		HashMap<State, Double> v;
 		v = new SearchAlgorithm(model, prop).runAlgorithm();
+		return fromImportance(model, v);
+	}
+
+	/**
+	 * As instantiate(model, prop), but also write the importance
+	 * function (and the HPCs found) to out, so that read() can
+	 * restore it in another instance of the same model (e.g., in
+	 * a worker process).
+	 */
+	public static SchemeZVAv instantiate(StateSpace model, Property prop,
+	                                     DataOutputStream out)
+			throws IOException
+	{
+		HashMap<State, Double> v;
+		v = new SearchAlgorithm(model, prop).runAlgorithm();
+		model.writeStateValues(out, v);
+		out.flush();
+		return fromImportance(model, v);
+	}
+
+	/** Restore an importance function written by instantiate(). */
+	public static SchemeZVAv read(StateSpace model, DataInputStream in)
+			throws IOException
+	{
+		return fromImportance(model, model.readStateValues(in));
+	}
+
+	private static String cacheHeader(StateSpace model, Property prop,
+	                                  String fingerprint)
+	{
+		return "DFTRES importance 3 " + fingerprint + " "
+		       + prop.reachTarget + " " + prop.avoidTarget + " "
+		       + model.epsilon;
+	}
+
+	/**
+	 * As instantiate(model, prop), but if reuse is true and the
+	 * given file contains the importance function for the same
+	 * targets and fingerprint (identifying the model and options
+	 * of the run), use that instead of searching again. Otherwise
+	 * the importance function (and the HPCs found) is stored in
+	 * the file for later runs.
+	 */
+	public static SchemeZVAv instantiate(StateSpace model, Property prop,
+	                                     File cache, boolean reuse,
+	                                     String fingerprint)
+	{
+		String header = cacheHeader(model, prop, fingerprint);
+		if (reuse && cache.exists()) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(
+					new FileInputStream(cache))))
+			{
+				if (in.readUTF().equals(header))
+					return fromImportance(model, model.readStateValues(in));
+				System.err.println("Importance function in " + cache + " is for a different model, options or targets, searching again.");
+			} catch (IOException e) {
+				System.err.println("Unable to read importance function from " + cache + ": " + e);
+			}
+		}
+		HashMap<State, Double> v;
+		v = new SearchAlgorithm(model, prop).runAlgorithm();
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(
+				new FileOutputStream(cache))))
+		{
+			out.writeUTF(header);
+			model.writeStateValues(out, v);
+		} catch (IOException e) {
+			System.err.println("Unable to store importance function in " + cache + ": " + e);
+		}
+		return fromImportance(model, v);
+	}
+
+	private static SchemeZVAv fromImportance(StateSpace model,
+	                                         HashMap<State, Double> v)
+	{
+		HashMap<State, StateInfo> info = new HashMap<>();
 		for (State s : v.keySet()) {
 			s = model.find(s);
+			/* Pin before exploring, as the neighbours could
+			 * otherwise be evicted right away. */
+			if (v.get(s) != 1)
+				s.pin();
 			Neighbours nb = s.getNeighbours();
 			State neighbours[] = nb.neighbours;
 			if (v.get(s) == 1)
@@ -85,6 +176,7 @@ public class SchemeZVAv extends Scheme {
 				throw new AssertionError("Different neighbours");
 			}
 			stateWeightsIS = si.weightsIS;
+			cumWeightsIS = si.cumWeightsIS;
 			if (si.weightsIS.length != ret.neighbours.length)
 				throw new AssertionError(ret.neighbours.length + " neighbours but " + stateWeightsIS.length + " weights");
 			totalStateWeightIS = si.weightSum;